@@ -0,0 +1,93 @@
+/*
+ * SonarSource :: Benchmarks :: Ant task
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildLogger;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.XmlLogger;
+import org.apache.tools.ant.util.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sonarsource.scanner.api.LogOutput;
+
+/**
+ * Messages of the analysis passed to Ant through the task, for each level of message and each kind of listener.
+ * The listeners are created again for every batch of messages, since the {@link XmlLogger} keeps all the messages in
+ * memory until the end of the build.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LogOutputBenchmark {
+
+  private static final int BATCH_SIZE = 1000;
+
+  @Param({"default", "xml"})
+  public String listener;
+
+  @Param({"2", "4"})
+  public int listenerLevel;
+
+  @Param({"TRACE", "DEBUG", "INFO", "WARN", "ERROR"})
+  public LogOutput.Level level;
+
+  private LogOutput logOutput;
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    Project project = new Project();
+    BuildLogger logger = "xml".equals(listener) ? new XmlLogger() : new DefaultLogger();
+    logger.setMessageOutputLevel(listenerLevel);
+    logger.setOutputPrintStream(new PrintStream(NullOutputStream.INSTANCE));
+    logger.setErrorPrintStream(new PrintStream(NullOutputStream.INSTANCE));
+    project.addBuildListener(logger);
+    logger.buildStarted(new BuildEvent(project));
+    SonarQubeTask task = new SonarQubeTask();
+    task.setProject(project);
+    logOutput = task.new LogOutputImplementation();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void log() {
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      logOutput.log("Sensor JavaSensor [java] (done) | time=1234ms", level);
+    }
+  }
+
+}
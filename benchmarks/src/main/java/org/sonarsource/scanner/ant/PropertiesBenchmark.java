@@ -0,0 +1,97 @@
+/*
+ * SonarSource :: Benchmarks :: Ant task
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.util.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merge of the analysis properties, with one Ant property out of ten being an analysis property.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PropertiesBenchmark {
+
+  @Param({"10", "1000", "100000"})
+  public int propertyCount;
+
+  private SonarQubeTask task;
+  private Properties properties;
+
+  @Setup
+  public void setUp() {
+    Project project = new Project();
+    project.setBaseDir(new File("."));
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    logger.setOutputPrintStream(new PrintStream(NullOutputStream.INSTANCE));
+    logger.setErrorPrintStream(new PrintStream(NullOutputStream.INSTANCE));
+    project.addBuildListener(logger);
+    properties = new Properties();
+    for (int i = 0; i < propertyCount; i++) {
+      String key = (i % 10 == 0 ? "sonar.property" : "build.property") + i;
+      project.setProperty(key, "value" + i);
+      properties.setProperty(key, "value" + i);
+    }
+    task = new SonarQubeTask() {
+      @Override
+      Map<String, String> getEnv() {
+        return Collections.emptyMap();
+      }
+    };
+    task.setProject(project);
+  }
+
+  @Benchmark
+  public Map<String, String> collectProperties() {
+    return task.collectProperties();
+  }
+
+  @Benchmark
+  public Map<String, String> putAll() {
+    Map<String, String> dest = new HashMap<>();
+    SonarQubeTask.putAll(properties, dest);
+    return dest;
+  }
+
+}
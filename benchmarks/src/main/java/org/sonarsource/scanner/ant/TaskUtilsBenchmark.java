@@ -0,0 +1,80 @@
+/*
+ * SonarSource :: Benchmarks :: Ant task
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.XmlLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Helpers called by every execution of the task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TaskUtilsBenchmark {
+
+  private Project project;
+
+  @Setup
+  public void setUp() {
+    project = new Project();
+    project.addBuildListener(new XmlLogger());
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    project.addBuildListener(logger);
+  }
+
+  @Benchmark
+  public String getTaskVersion() {
+    return SonarQubeTaskUtils.getTaskVersion();
+  }
+
+  @Benchmark
+  public URL getJarPath() {
+    return SonarQubeTaskUtils.getJarPath();
+  }
+
+  @Benchmark
+  public int getAntLoggerLever() {
+    return SonarQubeTaskUtils.getAntLoggerLever(project);
+  }
+
+  @Benchmark
+  public int getEffectiveLogLevel() {
+    return SonarQubeTaskUtils.getEffectiveLogLevel(project);
+  }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * SonarSource :: IT :: Ant task
+ * Copyright (C) 2009-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant.it;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Generates the Ant projects analysed by {@link ScaleTest}:
+ * <ul>
+ *   <li>source files spread over one source directory per {@value #FILES_PER_SOURCE_DIR} files, all listed in
+ *   <code>sonar.sources</code>, each with packages {@value #PACKAGE_DEPTH} levels deep</li>
+ *   <li>library jars passed twice through nested filesets, half of them being copies of the other half, so that the
+ *   task has duplicated paths and duplicated content to remove</li>
+ * </ul>
+ * The task writes its timings and the resources used by the analysis in the <code>build</code> directory.
+ */
+final class ScaleProject {
+
+  static final String TIMINGS = "build/timings.json";
+  static final String RESOURCES = "build/resources.csv";
+  private static final int FILES_PER_SOURCE_DIR = 100;
+  private static final int FILES_PER_PACKAGE = 20;
+  private static final int PACKAGE_DEPTH = 5;
+  private static final File TASK_JAR = new File("../sonarqube-ant-task/target/sonarqube-ant-task.jar").getAbsoluteFile();
+
+  private ScaleProject() {
+    // only static methods
+  }
+
+  /**
+   * @return the build file of the generated project
+   */
+  static File generate(File dir, String projectKey, int sourceFiles, int libraries) throws IOException {
+    List<String> sourceDirs = new ArrayList<>();
+    for (int i = 0; i < sourceFiles; i++) {
+      String sourceDir = "src-" + (i / FILES_PER_SOURCE_DIR);
+      if (i % FILES_PER_SOURCE_DIR == 0) {
+        sourceDirs.add(sourceDir);
+      }
+      writeSource(new File(dir, sourceDir), i);
+    }
+    for (int i = 0; i < libraries; i++) {
+      writeLibrary(new File(dir, "lib/group-" + (i % 10) + "/lib-" + i + ".jar"), i % Math.max(1, libraries / 2));
+    }
+    File buildFile = new File(dir, "build.xml");
+    write(buildFile.toPath(), buildXml(projectKey, String.join(",", sourceDirs)));
+    return buildFile;
+  }
+
+  private static void writeSource(File sourceDir, int index) throws IOException {
+    StringBuilder pkg = new StringBuilder("scale");
+    int packageIndex = index / FILES_PER_PACKAGE;
+    for (int level = 0; level < PACKAGE_DEPTH; level++) {
+      pkg.append(".p").append(packageIndex % 10);
+      packageIndex /= 10;
+    }
+    String className = "Class" + index;
+    Path file = sourceDir.toPath().resolve(pkg.toString().replace('.', '/')).resolve(className + ".java");
+    write(file, "package " + pkg + ";\n\n"
+      + "public class " + className + " {\n"
+      + "  public int value(int i) {\n"
+      + "    return i > " + index + " ? i : " + index + ";\n"
+      + "  }\n"
+      + "}\n");
+  }
+
+  private static void writeLibrary(File jar, int content) throws IOException {
+    Files.createDirectories(jar.getParentFile().toPath());
+    try (OutputStream out = Files.newOutputStream(jar.toPath()); JarOutputStream jarOut = new JarOutputStream(out)) {
+      jarOut.putNextEntry(new JarEntry("scale/library-" + content + ".txt"));
+      jarOut.write(("library " + content).getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static String buildXml(String projectKey, String sourceDirs) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+      + "<project name=\"Scale\" default=\"sonar\" basedir=\".\" xmlns:sonar=\"antlib:org.sonar.ant\">\n"
+      + "  <property name=\"sonar.projectKey\" value=\"" + projectKey + "\" />\n"
+      + "  <property name=\"sonar.projectName\" value=\"Scale\" />\n"
+      + "  <property name=\"sonar.projectVersion\" value=\"0.1-SNAPSHOT\" />\n"
+      + "  <property name=\"sonar.sources\" value=\"" + sourceDirs + "\" />\n"
+      + "\n"
+      + "  <target name=\"sonar\">\n"
+      + "    <taskdef uri=\"antlib:org.sonar.ant\" resource=\"org/sonar/ant/antlib.xml\">\n"
+      + "      <classpath path=\"" + TASK_JAR.getPath() + "\" />\n"
+      + "    </taskdef>\n"
+      + "    <sonar:sonar timingReport=\"" + TIMINGS + "\" resourceSamples=\"" + RESOURCES + "\" sampleInterval=\"200\">\n"
+      + "      <libraries>\n"
+      + "        <fileset dir=\"lib\" includes=\"**/*.jar\" />\n"
+      + "        <fileset dir=\"lib\" includes=\"**/*.jar\" />\n"
+      + "      </libraries>\n"
+      + "    </sonar:sonar>\n"
+      + "  </target>\n"
+      + "</project>\n";
+  }
+
+  private static void write(Path file, String content) throws IOException {
+    Files.createDirectories(file.getParent());
+    Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * SonarSource :: IT :: Ant task
+ * Copyright (C) 2009-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant.it;
+
+import com.sonar.orchestrator.Orchestrator;
+import com.sonar.orchestrator.build.AntBuild;
+import com.sonar.orchestrator.locator.FileLocation;
+import com.sonar.orchestrator.locator.MavenLocation;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.sonarqube.ws.WsMeasures.Measure;
+import org.sonarqube.ws.client.HttpConnector;
+import org.sonarqube.ws.client.WsClientFactories;
+import org.sonarqube.ws.client.measure.ComponentWsRequest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Analyses generated projects of increasing size, see {@link ScaleProject}, and appends the wall time of the task,
+ * the peak heap usage of the Ant JVM and the size of the analysis properties of each size to
+ * <code>target/scale-results.csv</code>, so that the regressions show up by comparing the results of two versions.
+ * <p>
+ * Disabled by default, run it with <code>-Dscale=true</code>. The sizes are set by <code>-Dscale.sizes</code>,
+ * <code>1000,10000,100000</code> source files by default, and the number of library jars by
+ * <code>-Dscale.libraries</code>, 2000 by default.
+ */
+@RunWith(Parameterized.class)
+public class ScaleTest {
+
+  private static final File RESULTS = new File("target/scale-results.csv");
+  private static Orchestrator orchestrator;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Parameterized.Parameter
+  public int sourceFiles;
+
+  @Parameterized.Parameters(name = "{0} files")
+  public static Collection<Integer> sizes() {
+    return Arrays.stream(System.getProperty("scale.sizes", "1000,10000,100000").split(","))
+      .map(String::trim)
+      .map(Integer::valueOf)
+      .collect(Collectors.toList());
+  }
+
+  @BeforeClass
+  public static void startServer() {
+    assumeTrue("Scale tests are run with -Dscale=true", Boolean.getBoolean("scale"));
+    orchestrator = Orchestrator.builderEnv()
+      .setSonarVersion(System.getProperty("sonar.runtimeVersion", "LATEST_RELEASE[9.9]"))
+      .useDefaultAdminCredentialsForBuilds(true)
+      .addBundledPlugin(MavenLocation.of("org.sonarsource.java", "sonar-java-plugin", "LATEST_RELEASE"))
+      .restoreProfileAtStartup(FileLocation.ofClasspath("/com/sonar/ant/it/profile-java-empty.xml"))
+      .build();
+    orchestrator.start();
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    if (orchestrator != null) {
+      orchestrator.stop();
+      orchestrator = null;
+    }
+  }
+
+  @Test
+  public void analyseGeneratedProject() throws IOException {
+    int libraries = Integer.getInteger("scale.libraries", 2000);
+    String projectKey = "org.sonar.ant.tests:scale-" + sourceFiles;
+    File projectDir = folder.newFolder();
+    File buildFile = ScaleProject.generate(projectDir, projectKey, sourceFiles, libraries);
+    orchestrator.getServer().provisionProject(projectKey, "Scale " + sourceFiles);
+    orchestrator.getServer().associateProjectToQualityProfile(projectKey, "java", "empty");
+
+    orchestrator.executeBuild(AntBuild.create()
+      .setBuildLocation(FileLocation.of(buildFile))
+      .setTargets("sonar"));
+
+    String timings = new String(Files.readAllBytes(new File(projectDir, ScaleProject.TIMINGS).toPath()), StandardCharsets.UTF_8);
+    long totalMs = extract(timings, "\"total\": (\\d+)");
+    long analysisMs = extract(timings, "\"analysis\": (\\d+)");
+    long propertyCount = extract(timings, "\"count\": (\\d+)");
+    long propertyChars = extract(timings, "\"chars\": (\\d+)");
+    long peakHeap = peakHeap(new File(projectDir, ScaleProject.RESOURCES));
+    appendResult(libraries, totalMs, analysisMs, peakHeap, propertyCount, propertyChars);
+
+    assertThat(measure(projectKey, "files")).isEqualTo(sourceFiles);
+  }
+
+  private static long extract(String json, String regex) {
+    Matcher matcher = Pattern.compile(regex).matcher(json);
+    assertThat(matcher.find()).as(regex).isTrue();
+    return Long.parseLong(matcher.group(1));
+  }
+
+  private static long peakHeap(File samples) throws IOException {
+    List<String> lines = Files.readAllLines(samples.toPath(), StandardCharsets.UTF_8);
+    return lines.stream().skip(1)
+      .mapToLong(line -> Long.parseLong(line.split(",")[1]))
+      .max()
+      .orElse(0);
+  }
+
+  private void appendResult(int libraries, long totalMs, long analysisMs, long peakHeap, long propertyCount, long propertyChars)
+    throws IOException {
+    boolean header = !RESULTS.exists();
+    Files.createDirectories(RESULTS.getAbsoluteFile().getParentFile().toPath());
+    try (Writer writer = Files.newBufferedWriter(RESULTS.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+      if (header) {
+        writer.write("sourceFiles,libraries,totalMs,analysisMs,peakHeapBytes,propertyCount,propertyChars\n");
+      }
+      writer.write(sourceFiles + "," + libraries + "," + totalMs + "," + analysisMs + "," + peakHeap + "," + propertyCount + ","
+        + propertyChars + "\n");
+    }
+  }
+
+  private static int measure(String componentKey, String metricKey) {
+    List<Measure> measures = WsClientFactories.getDefault()
+      .newClient(HttpConnector.newBuilder().url(orchestrator.getServer().getUrl()).build())
+      .measures().component(new ComponentWsRequest().setComponent(componentKey).setMetricKeys(Arrays.asList(metricKey)))
+      .getComponent().getMeasuresList();
+    return (int) Double.parseDouble(measures.get(0).getValue());
+  }
+
+}
@@ -0,0 +1,507 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.apache.tools.ant.types.Path;
+import org.sonarsource.scanner.api.LogOutput;
+
+/**
+ * Resident JVM running the analyses of the builds of the host, so that the scanner API and the JDK classes used by the
+ * analysis are loaded and compiled once. The engine is still loaded for each analysis, in its own class loader, as the
+ * scanner API requires.
+ * <p>
+ * The daemon listens on the loopback interface only, and writes its port and a secret token in a registry file
+ * readable by its owner only. Each JVM command and version of the task has its own daemon. The daemon stops once it
+ * has been idle for the given time.
+ * <p>
+ * The daemon is shared by builds of different environments, so it ignores its own environment variables: the client
+ * resolves the ones read by the scanner API, <code>SONAR_HOST_URL</code>, <code>BITBUCKET_BUILD_NUMBER</code> and
+ * <code>SONAR_USER_HOME</code>, into the analysis properties.
+ * <p>
+ * The client and the daemon exchange lines encoded like the output of {@link ForkedAnalysis}:
+ * <ol>
+ *   <li>the client sends <code>[sonar:HELLO] &lt;token&gt;</code>, the daemon answers <code>[sonar:READY] &lt;version&gt;</code></li>
+ *   <li>the client sends <code>[sonar:PING]</code>, the daemon answers <code>[sonar:PONG]</code></li>
+ *   <li>the client sends the analysis properties, one <code>[sonar:PROPERTY] key=value</code> per property, the
+ *   optional <code>[sonar:CACHE] directory</code> to lock, then <code>[sonar:RUN]</code></li>
+ *   <li>the daemon answers the output of {@link ForkedAnalysis#run(Map, File, PrintStream, boolean)}, then
+ *   <code>[sonar:EXIT] &lt;code&gt;</code>, or only <code>[sonar:BUSY]</code> when it is already running an analysis</li>
+ * </ol>
+ */
+public final class AnalysisDaemon {
+
+  static final String DIRECTORY = "ant-daemon";
+  static final String HOST_URL_PROPERTY = "sonar.host.url";
+  static final String HOST_URL_ENV = "SONAR_HOST_URL";
+  static final String BITBUCKET_ENV = "BITBUCKET_BUILD_NUMBER";
+  private static final String SONARCLOUD_URL = "https://sonarcloud.io";
+  private static final String HELLO = "HELLO";
+  private static final String READY = "READY";
+  private static final String PING = "PING";
+  private static final String PONG = "PONG";
+  private static final String PROPERTY = "PROPERTY";
+  private static final String CACHE = "CACHE";
+  private static final String RUN = "RUN";
+  private static final String BUSY = "BUSY";
+  private static final String EXIT = "EXIT";
+  private static final String PORT_KEY = "port";
+  private static final String TOKEN_KEY = "token";
+  private static final String VERSION_KEY = "version";
+  private static final int ACCEPT_TIMEOUT_MILLIS = 500;
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+  private static final long START_TIMEOUT_MILLIS = 60_000;
+  private static final long START_POLL_MILLIS = 100;
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final Map<File, ReentrantLock> START_LOCKS = new ConcurrentHashMap<>();
+
+  private final File registry;
+  private final long idleTimeoutMillis;
+  private final String token = UUID.randomUUID().toString();
+  private final ServerSocket serverSocket;
+  private final ReentrantLock analysisLock = new ReentrantLock();
+  private final AtomicInteger activeConnections = new AtomicInteger();
+  private volatile long lastActivity = System.currentTimeMillis();
+  private volatile boolean stopped;
+
+  AnalysisDaemon(File registry, long idleTimeoutMillis) throws IOException {
+    this.registry = registry;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
+    writeRegistry();
+  }
+
+  /**
+   * Entry point of the daemon JVM.
+   *
+   * @param args the registry file and the idle timeout, in seconds
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: " + AnalysisDaemon.class.getName() + " <registry file> <idle timeout in seconds>");
+      System.exit(2);
+    }
+    new AnalysisDaemon(new File(args[0]), TimeUnit.SECONDS.toMillis(Long.parseLong(args[1]))).serve();
+    System.exit(0);
+  }
+
+  /**
+   * Accepts connections until the daemon is stopped or idle.
+   */
+  void serve() {
+    ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+      Thread thread = new Thread(runnable, "sonar-analysis-daemon");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      while (!stopped && !isIdle()) {
+        try {
+          Socket socket = serverSocket.accept();
+          activeConnections.incrementAndGet();
+          executor.execute(() -> handle(socket));
+        } catch (SocketTimeoutException e) {
+          // check whether the daemon is idle
+        } catch (IOException e) {
+          if (!stopped) {
+            throw new IllegalStateException("Unable to accept connections", e);
+          }
+        }
+      }
+    } finally {
+      stop();
+      executor.shutdownNow();
+    }
+  }
+
+  private boolean isIdle() {
+    return activeConnections.get() == 0 && System.currentTimeMillis() - lastActivity > idleTimeoutMillis;
+  }
+
+  void stop() {
+    stopped = true;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      // already closed
+    }
+    // another daemon may have replaced this one in the meantime
+    Properties props = loadRegistry(registry);
+    if (props != null && token.equals(props.getProperty(TOKEN_KEY))) {
+      registry.delete();
+    }
+  }
+
+  private void writeRegistry() throws IOException {
+    Properties props = new Properties();
+    props.setProperty(PORT_KEY, Integer.toString(serverSocket.getLocalPort()));
+    props.setProperty(TOKEN_KEY, token);
+    props.setProperty(VERSION_KEY, SonarQubeTaskUtils.getTaskVersion());
+    File dir = registry.getAbsoluteFile().getParentFile();
+    Files.createDirectories(dir.toPath());
+    File tmp = new File(dir, registry.getName() + "." + UUID.randomUUID() + ".tmp");
+    // the token is a secret of the owner of the daemon, never readable by others even while being written
+    if (Files.getFileStore(dir.toPath()).supportsFileAttributeView("posix")) {
+      Files.createFile(tmp.toPath(), PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+    } else {
+      Files.createFile(tmp.toPath());
+      tmp.setReadable(false, false);
+      tmp.setReadable(true, true);
+    }
+    try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+      props.store(writer, "SonarQube analysis daemon");
+    }
+    Files.move(tmp.toPath(), registry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void handle(Socket socket) {
+    try (Socket s = socket;
+      BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+      PrintStream out = new PrintStream(s.getOutputStream(), true, StandardCharsets.UTF_8.name())) {
+      s.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      String[] hello = read(in);
+      if (hello == null || !HELLO.equals(hello[0]) || !token.equals(hello[1])) {
+        return;
+      }
+      out.println(ForkedAnalysis.encode(READY, SonarQubeTaskUtils.getTaskVersion()));
+      s.setSoTimeout(0);
+      Map<String, String> properties = new TreeMap<>();
+      File lockedCacheDir = null;
+      String[] command;
+      while ((command = read(in)) != null) {
+        switch (command[0]) {
+          case PING:
+            out.println(ForkedAnalysis.encode(PONG, ""));
+            break;
+          case PROPERTY:
+            int separator = command[1].indexOf('=');
+            if (separator > 0) {
+              properties.put(command[1].substring(0, separator), command[1].substring(separator + 1));
+            }
+            break;
+          case CACHE:
+            lockedCacheDir = new File(command[1]);
+            break;
+          case RUN:
+            run(properties, lockedCacheDir, out);
+            return;
+          default:
+            return;
+        }
+      }
+    } catch (IOException e) {
+      // client gone
+    } finally {
+      lastActivity = System.currentTimeMillis();
+      activeConnections.decrementAndGet();
+    }
+  }
+
+  private void run(Map<String, String> properties, @Nullable File lockedCacheDir, PrintStream out) {
+    if (!analysisLock.tryLock()) {
+      out.println(ForkedAnalysis.encode(BUSY, ""));
+      return;
+    }
+    try {
+      int exitCode = ForkedAnalysis.run(properties, lockedCacheDir, out, true);
+      out.println(ForkedAnalysis.encode(EXIT, Integer.toString(exitCode)));
+    } finally {
+      analysisLock.unlock();
+    }
+  }
+
+  @CheckForNull
+  private static String[] read(BufferedReader in) throws IOException {
+    String line = in.readLine();
+    return line == null ? null : ForkedAnalysis.decode(line);
+  }
+
+  /**
+   * @param daemonDir directory of the registry files, in the user home of the scanner
+   * @param javaCommand JVM command the daemon is started with, including the options added to it like the ones of
+   * {@link ClassDataSharing}
+   * @return the registry file of the daemon started with the given JVM command by this version of the task
+   */
+  static File registry(File daemonDir, CommandlineJava javaCommand) {
+    String key = SonarQubeTaskUtils.getTaskVersion() + "\n" + String.join("\n", javaCommand.getVmCommand().getCommandline());
+    return new File(daemonDir, "daemon-" + SonarQubeTaskUtils.shortHash(key) + ".properties");
+  }
+
+  /**
+   * Resolves the environment variables of the build read by the scanner API into the analysis properties, the same way
+   * as the scanner API, since the daemon ignores its own.
+   *
+   * @return a copy of the properties
+   */
+  static Map<String, String> resolveEnvironment(Map<String, String> properties, Map<String, String> env) {
+    Map<String, String> resolved = new TreeMap<>(properties);
+    if (!resolved.containsKey(HOST_URL_PROPERTY)) {
+      if (env.get(BITBUCKET_ENV) != null) {
+        resolved.put(HOST_URL_PROPERTY, SONARCLOUD_URL);
+      } else if (env.get(HOST_URL_ENV) != null) {
+        resolved.put(HOST_URL_PROPERTY, env.get(HOST_URL_ENV));
+      }
+    }
+    resolved.put(ScannerCache.USER_HOME_PROPERTY, ScannerCache.cacheDir(properties, env).getParent());
+    return resolved;
+  }
+
+  /**
+   * Runs the analysis in the daemon of the given registry file, starting it if needed with the given command.
+   *
+   * @param idleTimeoutSeconds idle time after which a daemon started by this call stops
+   * @return <code>false</code> when the daemon is busy with the analysis of another build
+   */
+  static boolean launch(Task task, CommandlineJava javaCommand, File registry, long idleTimeoutSeconds, Map<String, String> properties,
+    LogOutput logOutput, AnalysisTimings timings, @Nullable File lockedCacheDir) {
+    Connection connection = connectOrStart(registry, () -> start(task, javaCommand, registry, idleTimeoutSeconds));
+    task.log("Connected to the analysis daemon " + registry, Project.MSG_VERBOSE);
+    try (Connection c = connection) {
+      for (Map.Entry<String, String> property : properties.entrySet()) {
+        c.send(PROPERTY, property.getKey() + "=" + property.getValue());
+      }
+      if (lockedCacheDir != null) {
+        c.send(CACHE, lockedCacheDir.getAbsolutePath());
+      }
+      c.send(RUN, "");
+
+      ForkedAnalysis.ForkedLogOutputStream out = new ForkedAnalysis.ForkedLogOutputStream(task, logOutput, timings);
+      Integer exitCode = null;
+      String line;
+      while (exitCode == null && (line = c.in.readLine()) != null) {
+        String[] decoded = ForkedAnalysis.decode(line);
+        if (decoded != null && BUSY.equals(decoded[0])) {
+          return false;
+        } else if (decoded != null && EXIT.equals(decoded[0])) {
+          exitCode = Integer.valueOf(decoded[1]);
+        } else {
+          out.processLine(line, Project.MSG_INFO);
+        }
+      }
+      if (out.failure() != null) {
+        throw new BuildException(out.failure());
+      }
+      if (exitCode == null) {
+        throw new BuildException("Connection to the analysis daemon lost during the analysis");
+      }
+      if (exitCode != 0) {
+        throw new BuildException("Analysis failed in the daemon with exit code " + exitCode);
+      }
+      return true;
+    } catch (IOException e) {
+      throw new BuildException("Unable to run the analysis in the daemon", e);
+    }
+  }
+
+  /**
+   * Connects to the daemon of the registry file, starting it with the given action if there is none. Builds of the host
+   * starting at the same time start a single daemon: they take turns with a lock file next to the registry, held while
+   * the daemon starts, and the ones that then find a daemon connect to it. Like for the scanner cache, the threads of a
+   * build take turns with a lock in memory, since file locks are held by the whole JVM.
+   */
+  // VisibleForTesting
+  static Connection connectOrStart(File registry, Runnable startDaemon) {
+    Connection connection = connect(registry);
+    if (connection != null) {
+      return connection;
+    }
+    File lockFile = new File(registry.getAbsolutePath() + LOCK_SUFFIX);
+    ReentrantLock jvmLock = START_LOCKS.computeIfAbsent(lockFile, f -> new ReentrantLock());
+    jvmLock.lock();
+    try {
+      Files.createDirectories(lockFile.getParentFile().toPath());
+      try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = channel.lock()) {
+        connection = connect(registry);
+        if (connection == null) {
+          startDaemon.run();
+          connection = awaitStart(registry);
+        }
+        return connection;
+      }
+    } catch (IOException e) {
+      throw new BuildException("Unable to lock the analysis daemon " + lockFile, e);
+    } finally {
+      jvmLock.unlock();
+    }
+  }
+
+  private static void start(Task task, CommandlineJava javaCommand, File registry, long idleTimeoutSeconds) {
+    try {
+      CommandlineJava command = (CommandlineJava) javaCommand.clone();
+      command.setClassname(AnalysisDaemon.class.getName());
+      Path classpath = command.createClasspath(task.getProject());
+      for (File location : ForkedAnalysis.classpath()) {
+        classpath.createPathElement().setLocation(location);
+      }
+      command.createArgument().setFile(registry.getAbsoluteFile());
+      command.createArgument().setValue(Long.toString(idleTimeoutSeconds));
+      task.log("Starting the analysis daemon " + command.describeCommand(), Project.MSG_VERBOSE);
+      Execute execute = new Execute();
+      execute.setCommandline(command.getCommandline());
+      execute.spawn();
+    } catch (IOException | CloneNotSupportedException e) {
+      throw new BuildException("Unable to start the analysis daemon", e);
+    }
+  }
+
+  private static Connection awaitStart(File registry) {
+    long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline) {
+      Connection connection = connect(registry);
+      if (connection != null) {
+        return connection;
+      }
+      try {
+        Thread.sleep(START_POLL_MILLIS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    throw new BuildException("The analysis daemon did not start within " + TimeUnit.MILLISECONDS.toSeconds(START_TIMEOUT_MILLIS) + "s");
+  }
+
+  /**
+   * Connects to the daemon of the registry file and checks that it is compatible and responsive.
+   *
+   * @return <code>null</code> when there is no such daemon
+   */
+  @CheckForNull
+  static Connection connect(File registry) {
+    Properties props = loadRegistry(registry);
+    String version = SonarQubeTaskUtils.getTaskVersion();
+    if (props == null || !version.equals(props.getProperty(VERSION_KEY))) {
+      return null;
+    }
+    Connection connection = null;
+    try {
+      connection = new Connection(Integer.parseInt(props.getProperty(PORT_KEY, "")));
+      connection.send(HELLO, props.getProperty(TOKEN_KEY, ""));
+      String[] ready = read(connection.in);
+      if (ready == null || !READY.equals(ready[0]) || !version.equals(ready[1])) {
+        connection.close();
+        return null;
+      }
+      connection.send(PING, "");
+      String[] pong = read(connection.in);
+      if (pong == null || !PONG.equals(pong[0])) {
+        connection.close();
+        return null;
+      }
+      connection.socket.setSoTimeout(0);
+      return connection;
+    } catch (IOException | NumberFormatException e) {
+      if (connection != null) {
+        connection.close();
+      }
+      return null;
+    }
+  }
+
+  @CheckForNull
+  private static Properties loadRegistry(File registry) {
+    if (!registry.isFile()) {
+      return null;
+    }
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(registry.toPath(), StandardCharsets.UTF_8)) {
+      props.load(reader);
+      return props;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  static final class Connection implements AutoCloseable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintStream out;
+
+    private Connection(int port) throws IOException {
+      socket = new Socket();
+      try {
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), HANDSHAKE_TIMEOUT_MILLIS);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new PrintStream(socket.getOutputStream(), false, StandardCharsets.UTF_8.name());
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+    }
+
+    private void send(String tag, String message) throws IOException {
+      out.println(ForkedAnalysis.encode(tag, message));
+      out.flush();
+      if (out.checkError()) {
+        throw new IOException("Connection to the analysis daemon lost");
+      }
+    }
+
+    @Override
+    public void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already closed
+      }
+    }
+  }
+
+}
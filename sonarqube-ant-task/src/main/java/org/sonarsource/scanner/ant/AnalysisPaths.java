@@ -0,0 +1,172 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.tools.ant.types.Path;
+import org.apache.tools.ant.types.Resource;
+import org.apache.tools.ant.types.resources.FileProvider;
+import org.apache.tools.ant.types.resources.FileResource;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Resolution of the Ant paths nested in the task into the file lists expected by the analysis properties.
+ */
+final class AnalysisPaths {
+
+  private AnalysisPaths() {
+    // only static methods
+  }
+
+  /**
+   * The files selected by a fileset are resolved against the canonical base directory of the fileset, which is
+   * computed once, so that large filesets don't cost one file system lookup per file. Those files are not canonical
+   * themselves: a file also reached through a symbolic link below the base directory is listed under both paths. The
+   * other files of the path are canonicalised one by one.
+   *
+   * @return the absolute files of the path, without duplicated paths, in the order of the path
+   */
+  static List<File> resolve(Path path) {
+    Map<File, File> canonicalBaseDirs = new HashMap<>();
+    Set<File> files = new LinkedHashSet<>();
+    for (Resource resource : path) {
+      FileResource fileResource = resource.as(FileResource.class);
+      if (fileResource != null && fileResource.getBaseDir() != null) {
+        File baseDir = canonicalBaseDirs.computeIfAbsent(fileResource.getBaseDir(), AnalysisPaths::canonical);
+        files.add(new File(baseDir, fileResource.getName()));
+      } else {
+        FileProvider fileProvider = resource.as(FileProvider.class);
+        if (fileProvider != null) {
+          files.add(canonical(fileProvider.getFile()));
+        }
+      }
+    }
+    return new ArrayList<>(files);
+  }
+
+  private static File canonical(File file) {
+    try {
+      return file.getCanonicalFile();
+    } catch (IOException e) {
+      return file.getAbsoluteFile();
+    }
+  }
+
+  /**
+   * Removes the files whose content is the same as the one of a previous file, like a jar copied in several
+   * directories. Directories are kept as is.
+   */
+  static List<File> withoutDuplicatedContent(List<File> files) throws IOException {
+    Map<Long, List<File>> keptBySize = new HashMap<>();
+    Map<File, String> hashes = new HashMap<>();
+    List<File> kept = new ArrayList<>();
+    for (File file : files) {
+      if (!file.isFile()) {
+        kept.add(file);
+        continue;
+      }
+      List<File> sameSize = keptBySize.computeIfAbsent(file.length(), size -> new ArrayList<>());
+      if (!containsSameContent(sameSize, file, hashes)) {
+        sameSize.add(file);
+        kept.add(file);
+      }
+    }
+    return kept;
+  }
+
+  private static boolean containsSameContent(Collection<File> candidates, File file, Map<File, String> hashes) throws IOException {
+    if (candidates.isEmpty()) {
+      return false;
+    }
+    String hash = hash(file, hashes);
+    for (File candidate : candidates) {
+      if (hash.equals(hash(candidate, hashes))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String hash(File file, Map<File, String> hashes) throws IOException {
+    String hash = hashes.get(file);
+    if (hash == null) {
+      hash = FileManifest.hash(file.toPath(), file.length());
+      hashes.put(file, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * @return the comma-separated list of the files, quoted when they contain a comma or a double quote, as parsed by
+   * {@link #fromPropertyValue(String)}
+   */
+  static String toPropertyValue(List<File> files) {
+    return files.stream()
+      .map(File::getPath)
+      .map(path -> path.contains(",") || path.contains("\"") ? ("\"" + path.replace("\"", "\"\"") + "\"") : path)
+      .collect(joining(","));
+  }
+
+  /**
+   * Splits a comma-separated property value the way the engine does: a value between double quotes may contain commas,
+   * a doubled double quote standing for a double quote, and the values are trimmed, the empty ones being dropped.
+   */
+  static List<String> fromPropertyValue(String value) {
+    List<String> values = new ArrayList<>();
+    StringBuilder current = new StringBuilder();
+    boolean quoted = false;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (quoted && c == '"' && i + 1 < value.length() && value.charAt(i + 1) == '"') {
+        current.append(c);
+        i++;
+      } else if (quoted && c == '"') {
+        quoted = false;
+      } else if (!quoted && c == '"' && current.toString().trim().isEmpty()) {
+        current.setLength(0);
+        quoted = true;
+      } else if (!quoted && c == ',') {
+        addTrimmed(values, current);
+        current.setLength(0);
+      } else {
+        current.append(c);
+      }
+    }
+    addTrimmed(values, current);
+    return values;
+  }
+
+  private static void addTrimmed(List<String> values, CharSequence value) {
+    String trimmed = value.toString().trim();
+    if (!trimmed.isEmpty()) {
+      values.add(trimmed);
+    }
+  }
+
+}
@@ -0,0 +1,450 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.apache.tools.ant.types.Path;
+import org.sonarsource.scanner.api.LogOutput;
+
+/**
+ * One analysis configured by a {@link SonarQubeTask}, from the collection of its properties to the publication of its
+ * timings:
+ * <ol>
+ *   <li>{@link #collect()} merges the properties of the build</li>
+ *   <li>{@link #prepare(Map)} resolves the nested paths and the options of the task into the properties</li>
+ *   <li>{@link #run(Map)} skips the analysis in incremental mode when nothing changed, or else runs it in the Ant JVM,
+ *   in a forked JVM or in a daemon</li>
+ *   <li>{@link #publishTimings()} publishes the durations of the phases, from the build thread</li>
+ * </ol>
+ * <code>&lt;sonar:sonar&gt;</code>, each module of <code>&lt;sonar:batch&gt;</code> and each round of
+ * <code>&lt;sonar:watch&gt;</code> run their analysis with a new pipeline.
+ */
+class AnalysisPipeline {
+
+  private static final String SOURCES_PROPERTY = "sonar.sources";
+  private static final String TESTS_PROPERTY = "sonar.tests";
+  private static final String BINARIES_PROPERTY = "sonar.java.binaries";
+  private static final String LIBRARIES_PROPERTY = "sonar.java.libraries";
+  private static final String MODULES_PROPERTY = "sonar.modules";
+  private static final String LOG_LEVEL_PROPERTY = "sonar.log.level";
+  static final String KEEP_REPORT_PROPERTY = "sonar.scanner.keepReport";
+  private static final String DEFAULT_MANIFEST = ".sonar-ant/manifest.properties";
+  private static final List<String> FINGERPRINTED_PROPERTIES = Arrays.asList(SOURCES_PROPERTY, TESTS_PROPERTY, BINARIES_PROPERTY,
+    LIBRARIES_PROPERTY);
+  /**
+   * Reports imported by the analysis, like <code>sonar.junit.reportPaths</code> or
+   * <code>sonar.coverage.jacoco.xmlReportPaths</code>, whose files are fingerprinted too
+   */
+  private static final Pattern REPORT_PATHS_PROPERTY = Pattern.compile(".*[rR]eportPaths?");
+  /**
+   * Properties that don't change the results of the analysis, like the credentials, which may be rotated between two
+   * builds, and the verbosity of the log
+   */
+  private static final List<String> UNFINGERPRINTED_PROPERTIES = Arrays.asList("sonar.token", "sonar.login", "sonar.password",
+    SonarQubeTask.VERBOSE_PROPERTY, LOG_LEVEL_PROPERTY, KEEP_REPORT_PROPERTY);
+  /**
+   * Key of the version of the task among the fingerprinted settings, as the scanner API is bundled with the task
+   */
+  private static final String TASK_VERSION_SETTING = "@taskVersion";
+
+  private final SonarQubeTask task;
+  @Nullable
+  private final String moduleName;
+  private final AnalysisTimings timings = new AnalysisTimings();
+  private final long start = System.nanoTime();
+
+  /**
+   * @param moduleName name of the module analysed by {@link SonarQubeBatchTask}, which tags the log output and the
+   * timings
+   */
+  AnalysisPipeline(SonarQubeTask task, @Nullable String moduleName) {
+    this.task = task;
+    this.moduleName = moduleName;
+  }
+
+  /**
+   * Messages of the pipeline, tagged with the module like the ones of the analysis.
+   */
+  private void log(String message) {
+    log(message, Project.MSG_INFO);
+  }
+
+  private void log(String message, int msgLevel) {
+    task.log(moduleName == null ? message : ("[" + moduleName + "] " + message), msgLevel);
+  }
+
+  /**
+   * @return the properties of the build, or <code>null</code> when the analysis is skipped
+   */
+  @CheckForNull
+  Map<String, String> collect() {
+    Map<String, String> properties = task.collectProperties();
+    return SonarQubeTask.isSkipped(properties) ? null : properties;
+  }
+
+  void prepare(Map<String, String> properties) {
+    putPaths(properties);
+    if (task.isKeepReport()) {
+      properties.put(KEEP_REPORT_PROPERTY, "true");
+    }
+    if (task.getLogFile() != null) {
+      properties.putIfAbsent(LOG_LEVEL_PROPERTY, task.getLogFileLevel().name());
+    }
+    timings.setProperties(properties);
+    timings.record(AnalysisTimings.Phase.PROPERTIES, start);
+  }
+
+  /**
+   * Resolves the nested paths, which take precedence over the corresponding properties.
+   */
+  private void putPaths(Map<String, String> properties) {
+    putPath(properties, SOURCES_PROPERTY, task.getSources(), false);
+    putPath(properties, TESTS_PROPERTY, task.getTests(), false);
+    putPath(properties, BINARIES_PROPERTY, task.getBinaries(), false);
+    putPath(properties, LIBRARIES_PROPERTY, task.getLibraries(), true);
+  }
+
+  private void putPath(Map<String, String> properties, String key, @Nullable Path path, boolean removeDuplicatedContent) {
+    if (path == null) {
+      return;
+    }
+    if (properties.containsKey(key)) {
+      log("Property '" + key + "' is overridden by the nested path", Project.MSG_VERBOSE);
+    }
+    int elements = path.size();
+    List<File> files = AnalysisPaths.resolve(path);
+    int resolved = files.size();
+    if (removeDuplicatedContent) {
+      try {
+        files = AnalysisPaths.withoutDuplicatedContent(files);
+      } catch (IOException e) {
+        throw new BuildException("Unable to read the files of '" + key + "'", e);
+      }
+    }
+    log(key + ": " + files.size() + " entries (" + (elements - resolved) + " duplicated paths and "
+      + (resolved - files.size()) + " duplicated files removed)", Project.MSG_VERBOSE);
+    properties.put(key, AnalysisPaths.toPropertyValue(files));
+  }
+
+  /**
+   * Runs the analysis of the prepared properties. The timings are not published, so that a background analysis can
+   * leave it to the build thread.
+   */
+  void run(Map<String, String> properties) {
+    try {
+      if (task.isIncremental()) {
+        launchIncrementalAnalysis(properties);
+      } else {
+        launchAnalysis(properties);
+      }
+    } finally {
+      timings.record(AnalysisTimings.Phase.TOTAL, start);
+    }
+  }
+
+  /**
+   * Timings are published even when the analysis fails, to tell which phase was slow or failed.
+   */
+  void publishTimings() {
+    log(timings.summary(), Project.MSG_VERBOSE);
+    timings.publish(task.getProject(), moduleName);
+    File timingReport = task.getTimingReport();
+    if (timingReport != null) {
+      try {
+        timings.writeJson(timingReport, moduleName);
+      } catch (IOException e) {
+        log("Unable to write the timing report to " + timingReport + ": " + e.getMessage(), Project.MSG_WARN);
+      }
+    }
+  }
+
+  private void launchIncrementalAnalysis(Map<String, String> properties) {
+    List<File> roots = fingerprintedRoots(properties);
+    if (roots == null) {
+      log("Incremental analysis is not supported with wildcards in paths or with '" + MODULES_PROPERTY + "', running a full analysis");
+      launchAnalysis(properties);
+      return;
+    }
+    File manifestFile = manifestFile(task, properties);
+    FileManifest previous = FileManifest.load(manifestFile);
+    FileManifest current;
+    long fingerprintStart = System.nanoTime();
+    try {
+      current = FileManifest.compute(roots, excludedDirs(properties, manifestFile), FileManifest.hash(analysisSettings(properties)), previous);
+    } catch (IOException e) {
+      timings.record(AnalysisTimings.Phase.FINGERPRINT, fingerprintStart);
+      log("Unable to fingerprint the analysed files, running a full analysis: " + e, Project.MSG_WARN);
+      launchAnalysis(properties);
+      return;
+    }
+    timings.record(AnalysisTimings.Phase.FINGERPRINT, fingerprintStart);
+
+    if (previous == null) {
+      log("No manifest of a previous analysis in " + manifestFile + ", running a full analysis");
+    } else if (!previous.settings().equals(current.settings())) {
+      log("Analysis properties or task version changed since the previous analysis, running a full analysis");
+    } else {
+      Set<String> changed = current.changedSince(previous);
+      if (changed.isEmpty()) {
+        log("No change in the " + current.size() + " analysed files since the previous analysis, SonarQube Scanner analysis skipped");
+        return;
+      }
+      log(changed.size() + " file(s) changed since the previous analysis, running a full analysis");
+      changed.forEach(path -> log("  " + path, Project.MSG_VERBOSE));
+    }
+
+    launchAnalysis(properties);
+
+    try {
+      current.save(manifestFile);
+    } catch (IOException e) {
+      log("Unable to save the manifest of the analysed files to " + manifestFile + ": " + e.getMessage(), Project.MSG_WARN);
+    }
+  }
+
+  /**
+   * The default manifest is in the base directory of the analysis, so that the modules of <code>&lt;sonar:batch&gt;</code>
+   * each have their own.
+   */
+  static File manifestFile(SonarQubeTask task, Map<String, String> properties) {
+    File manifest = task.getManifest();
+    return manifest != null ? manifest : SonarQubeTask.resolve(properties, DEFAULT_MANIFEST);
+  }
+
+  /**
+   * @return source, test, binary and library locations of the project, and the imported reports, or <code>null</code>
+   * when they can't be resolved to plain files and directories
+   */
+  @CheckForNull
+  static List<File> fingerprintedRoots(Map<String, String> properties) {
+    if (properties.containsKey(MODULES_PROPERTY)) {
+      return null;
+    }
+    List<String> keys = new ArrayList<>(FINGERPRINTED_PROPERTIES);
+    properties.keySet().stream().filter(key -> REPORT_PATHS_PROPERTY.matcher(key).matches()).sorted().forEach(keys::add);
+    List<File> roots = new ArrayList<>();
+    for (String key : keys) {
+      for (String path : AnalysisPaths.fromPropertyValue(properties.getOrDefault(key, ""))) {
+        if (path.contains("*") || path.contains("?")) {
+          return null;
+        }
+        roots.add(SonarQubeTask.resolve(properties, path));
+      }
+    }
+    return roots;
+  }
+
+  /**
+   * Directories written by the analysis or by the incremental mode, that must not be fingerprinted.
+   */
+  static List<File> excludedDirs(Map<String, String> properties, File manifestFile) {
+    return Arrays.asList(SonarQubeTask.workingDirectory(properties), manifestFile.getAbsoluteFile().getParentFile());
+  }
+
+  /**
+   * Analysis properties passed to the scanner, including the ones of the configured prefixes and the module-specific
+   * ones, and version of the task, that are fingerprinted to detect a change of settings.
+   */
+  private static Map<String, String> analysisSettings(Map<String, String> properties) {
+    Map<String, String> settings = new HashMap<>(properties);
+    settings.keySet().removeAll(UNFINGERPRINTED_PROPERTIES);
+    settings.put(TASK_VERSION_SETTING, SonarQubeTaskUtils.getTaskVersion());
+    return settings;
+  }
+
+  /**
+   * A new engine is bootstrapped for every analysis, see {@link EmbeddedAnalysis}. Use <code>sonar.modules</code> to
+   * analyse several modules with a single bootstrap.
+   * <p>
+   * When <code>fork</code> is enabled, the engine is bootstrapped in a new JVM instead, see {@link ForkedAnalysis}.
+   */
+  // VisibleForTesting
+  void launchAnalysis(Map<String, String> properties) {
+    long analysisStart = System.currentTimeMillis();
+    try {
+      runSampledAnalysis(properties);
+    } finally {
+      trimCache(properties, analysisStart);
+    }
+  }
+
+  /**
+   * Only the JVM running Ant is sampled, so the forked and daemon analyses are not.
+   */
+  private void runSampledAnalysis(Map<String, String> properties) {
+    File resourceSamples = task.getResourceSamples();
+    if (resourceSamples == null && task.getMaxHeapUsage() == 0 && task.getMaxGcTime() == 0) {
+      runAnalysis(properties);
+      return;
+    }
+    if (task.isForked()) {
+      log("Resources are not sampled when the analysis runs in another JVM", Project.MSG_VERBOSE);
+      runAnalysis(properties);
+      return;
+    }
+    ResourceSampler sampler;
+    try {
+      sampler = new ResourceSampler(resourceSamples, task.getSampleInterval(), task.getMaxHeapUsage(), task.getMaxGcTime(),
+        task.isFailAfterResourceThreshold(), this::log).start();
+    } catch (IOException e) {
+      throw new BuildException("Unable to write the resource samples to " + resourceSamples, e);
+    }
+    try {
+      runAnalysis(properties);
+    } catch (RuntimeException | Error e) {
+      sampler.close();
+      if (sampler.breach() != null) {
+        throw new BuildException(sampler.breach(), e);
+      }
+      throw e;
+    }
+    sampler.close();
+    if (sampler.breach() != null) {
+      throw new BuildException(sampler.breach());
+    }
+  }
+
+  private void runAnalysis(Map<String, String> properties) {
+    RotatingLogFile file = openLogFile();
+    try {
+      if (!task.isAsyncLog()) {
+        runAnalysis(properties, timings.counting(withLogFile(task.new LogOutputImplementation(moduleName), file)));
+        return;
+      }
+      SonarQubeTask.LogOutputImplementation antLogOutput = task.new LogOutputImplementation(moduleName);
+      try (AsyncLogOutput logOutput = new AsyncLogOutput(antLogOutput, antLogOutput::isLoggable, task.getLogBufferSize(),
+        task.getLogOverflow())) {
+        runAnalysis(properties, timings.counting(withLogFile(logOutput, file)));
+      }
+    } finally {
+      if (file != null) {
+        file.close();
+        if (file.failure() != null) {
+          log("Unable to write the log file " + task.getLogFile() + ": " + file.failure().getMessage(), Project.MSG_WARN);
+        }
+      }
+    }
+  }
+
+  @CheckForNull
+  private RotatingLogFile openLogFile() {
+    File logFile = task.getLogFile();
+    if (logFile == null) {
+      return null;
+    }
+    try {
+      return new RotatingLogFile(logFile, task.getLogFileMaxSize(), task.getLogFileCount());
+    } catch (IOException e) {
+      throw new BuildException("Unable to open the log file " + logFile, e);
+    }
+  }
+
+  /**
+   * The log file gets every message, before the Ant loggers filter them.
+   */
+  private static LogOutput withLogFile(LogOutput logOutput, @Nullable RotatingLogFile file) {
+    if (file == null) {
+      return logOutput;
+    }
+    return (formattedMessage, level) -> {
+      file.log(formattedMessage, level);
+      logOutput.log(formattedMessage, level);
+    };
+  }
+
+  private void runAnalysis(Map<String, String> properties, LogOutput logOutput) {
+    File lockedCacheDir = task.getCacheMaxSize() < 0 ? null : ScannerCache.cacheDir(properties, task.getEnv());
+    if (!task.isForked()) {
+      Object prepared = task.getProject().getReference(task.getEngineId());
+      EmbeddedAnalysis.run(properties, logOutput, timings, lockedCacheDir, prepared instanceof PreparedEngine ? (PreparedEngine) prepared : null);
+      return;
+    }
+    CommandlineJava javaCommand = task.getJavaCommand();
+    ClassDataSharing cds = task.isClassDataSharing() ? classDataSharing(properties) : null;
+    if (task.isDaemon()) {
+      CommandlineJava daemonCommand = cds == null ? javaCommand : cds.apply(javaCommand, false);
+      File registry = AnalysisDaemon.registry(new File(ScannerCache.cacheDir(properties, task.getEnv()).getParentFile(), AnalysisDaemon.DIRECTORY),
+        daemonCommand);
+      Map<String, String> daemonProperties = AnalysisDaemon.resolveEnvironment(properties, task.getEnv());
+      if (AnalysisDaemon.launch(task, daemonCommand, registry, task.getDaemonIdleTimeout(), daemonProperties, logOutput, timings, lockedCacheDir)) {
+        return;
+      }
+      log("The analysis daemon is busy, forking the analysis", Project.MSG_VERBOSE);
+    }
+    runForkedAnalysis(properties, logOutput, lockedCacheDir, cds);
+  }
+
+  private void runForkedAnalysis(Map<String, String> properties, LogOutput logOutput, @Nullable File lockedCacheDir, @Nullable ClassDataSharing cds) {
+    CommandlineJava javaCommand = task.getJavaCommand();
+    if (cds == null) {
+      ForkedAnalysis.launch(task, javaCommand, properties, logOutput, timings, lockedCacheDir);
+      return;
+    }
+    try {
+      ForkedAnalysis.launch(task, cds.apply(javaCommand, true), properties, logOutput, timings, lockedCacheDir);
+    } finally {
+      // the classes are dumped even when the analysis fails
+      cds.publish(task);
+    }
+  }
+
+  @CheckForNull
+  private ClassDataSharing classDataSharing(Map<String, String> properties) {
+    File cdsDir = new File(ScannerCache.cacheDir(properties, task.getEnv()).getParentFile(), ClassDataSharing.DIRECTORY);
+    ClassDataSharing cds = ClassDataSharing.of(cdsDir, task.getJavaCommand(), ForkedAnalysis.classpath());
+    if (cds == null) {
+      log("Class data sharing is disabled, as the task is not loaded from a jar", Project.MSG_VERBOSE);
+    }
+    return cds;
+  }
+
+  private void trimCache(Map<String, String> properties, long analysisStart) {
+    long cacheMaxSize = task.getCacheMaxSize();
+    if (cacheMaxSize < 0) {
+      return;
+    }
+    File cacheDir = ScannerCache.cacheDir(properties, task.getEnv());
+    try {
+      // Some file systems truncate the dates to the second
+      Long freed = ScannerCache.evict(cacheDir, cacheMaxSize, analysisStart - 1000);
+      if (freed == null) {
+        log("Scanner cache " + cacheDir + " is locked by another build, not trimmed", Project.MSG_VERBOSE);
+      } else if (freed > 0) {
+        log("Removed " + (freed / 1024) + " KB of least recently used files from the scanner cache " + cacheDir);
+      }
+    } catch (IOException e) {
+      log("Unable to trim the scanner cache " + cacheDir + ": " + e.getMessage(), Project.MSG_WARN);
+    }
+  }
+
+}
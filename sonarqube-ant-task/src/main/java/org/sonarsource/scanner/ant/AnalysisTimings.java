@@ -0,0 +1,202 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.Project;
+import org.sonarsource.scanner.api.LogOutput;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+/**
+ * Durations of the phases of an execution of the task, and number of log messages of each level emitted by the analysis.
+ */
+class AnalysisTimings {
+
+  static final String PROPERTY_PREFIX = "sonar.timing.";
+
+  enum Phase {
+    /**
+     * Merge of the analysis properties and resolution of the nested paths
+     */
+    PROPERTIES,
+    /**
+     * Fingerprint of the analysed files, in incremental mode
+     */
+    FINGERPRINT,
+    /**
+     * Bootstrap of the scanner engine, including its download
+     */
+    BOOTSTRAP,
+    /**
+     * Analysis and upload of the report
+     */
+    ANALYSIS,
+    /**
+     * Whole execution of the task
+     */
+    TOTAL;
+
+    String key() {
+      return name().toLowerCase(Locale.ENGLISH);
+    }
+
+    @CheckForNull
+    static Phase fromKey(String key) {
+      for (Phase phase : values()) {
+        if (phase.key().equals(key)) {
+          return phase;
+        }
+      }
+      return null;
+    }
+  }
+
+  private final Map<Phase, Long> durations = new EnumMap<>(Phase.class);
+  private final AtomicLongArray logCounts = new AtomicLongArray(Level.values().length);
+  private int propertyCount = -1;
+  private long propertyChars;
+
+  /**
+   * Records the time elapsed since the given {@link System#nanoTime()}.
+   */
+  void record(Phase phase, long startNanos) {
+    set(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+  }
+
+  synchronized void set(Phase phase, long millis) {
+    durations.put(phase, millis);
+  }
+
+  @CheckForNull
+  synchronized Long get(Phase phase) {
+    return durations.get(phase);
+  }
+
+  /**
+   * Records the size of the properties passed to the scanner, which grows with the number of analysed paths.
+   */
+  synchronized void setProperties(Map<String, String> properties) {
+    propertyCount = properties.size();
+    propertyChars = properties.entrySet().stream().mapToLong(e -> (long) e.getKey().length() + e.getValue().length()).sum();
+  }
+
+  private synchronized Map<Phase, Long> durations() {
+    return new EnumMap<>(durations);
+  }
+
+  long logCount(Level level) {
+    return logCounts.get(level.ordinal());
+  }
+
+  /**
+   * @return an output counting the messages before passing them to the given one
+   */
+  LogOutput counting(LogOutput delegate) {
+    return (formattedMessage, level) -> {
+      logCounts.incrementAndGet(level.ordinal());
+      delegate.log(formattedMessage, level);
+    };
+  }
+
+  /**
+   * Sets the Ant properties <code>sonar.timing.[module.]&lt;phase&gt;.ms</code>,
+   * <code>sonar.timing.[module.]log.&lt;level&gt;.count</code> and
+   * <code>sonar.timing.[module.]properties.{count,chars}</code>, unless they are already set.
+   */
+  void publish(Project project, @Nullable String moduleName) {
+    String prefix = PROPERTY_PREFIX + (moduleName == null ? "" : (moduleName + "."));
+    durations().forEach((phase, millis) -> project.setNewProperty(prefix + phase.key() + ".ms", Long.toString(millis)));
+    synchronized (this) {
+      if (propertyCount >= 0) {
+        project.setNewProperty(prefix + "properties.count", Integer.toString(propertyCount));
+        project.setNewProperty(prefix + "properties.chars", Long.toString(propertyChars));
+      }
+    }
+    for (Level level : Level.values()) {
+      project.setNewProperty(prefix + "log." + level.name().toLowerCase(Locale.ENGLISH) + ".count", Long.toString(logCount(level)));
+    }
+  }
+
+  String summary() {
+    StringBuilder sb = new StringBuilder("Timings:");
+    durations().forEach((phase, millis) -> sb.append(' ').append(phase.key()).append('=').append(millis).append("ms"));
+    sb.append(", log messages:");
+    for (Level level : Level.values()) {
+      sb.append(' ').append(level.name()).append('=').append(logCount(level));
+    }
+    return sb.toString();
+  }
+
+  void writeJson(File file, @Nullable String moduleName) throws IOException {
+    StringBuilder json = new StringBuilder("{\n");
+    if (moduleName != null) {
+      json.append("  \"module\": \"").append(escape(moduleName)).append("\",\n");
+    }
+    json.append("  \"phasesMs\": {");
+    String separator = "\n";
+    for (Map.Entry<Phase, Long> entry : durations().entrySet()) {
+      json.append(separator).append("    \"").append(entry.getKey().key()).append("\": ").append(entry.getValue());
+      separator = ",\n";
+    }
+    json.append("\n  },\n");
+    synchronized (this) {
+      if (propertyCount >= 0) {
+        json.append("  \"properties\": {\n    \"count\": ").append(propertyCount).append(",\n    \"chars\": ").append(propertyChars).append("\n  },\n");
+      }
+    }
+    json.append("  \"logMessages\": {");
+    separator = "\n";
+    for (Level level : Level.values()) {
+      json.append(separator).append("    \"").append(level.name()).append("\": ").append(logCount(level));
+      separator = ",\n";
+    }
+    json.append("\n  }\n}\n");
+    Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      writer.write(json.toString());
+    }
+  }
+
+  private static String escape(String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import org.sonarsource.scanner.api.LogOutput;
+
+/**
+ * Hands the messages of the scanner engine over to another {@link LogOutput} from a single background thread, so that
+ * the engine threads don't wait for the Ant listeners. Messages are kept in a bounded ring buffer allocated upfront,
+ * and delivered in batches and in order.
+ * <p>
+ * {@link #close()} must be called once the analysis is over: it waits until all the buffered messages are delivered.
+ */
+class AsyncLogOutput implements LogOutput, AutoCloseable {
+
+  private static final int MAX_BATCH_SIZE = 256;
+
+  enum OverflowPolicy {
+    /**
+     * Wait for room in the buffer
+     */
+    BLOCK,
+    /**
+     * Drop the incoming TRACE and DEBUG messages, wait for room in the buffer for the others
+     */
+    DROP_DEBUG,
+    /**
+     * Drop the oldest buffered message, unless it is an ERROR
+     */
+    DROP_OLDEST
+  }
+
+  private final LogOutput delegate;
+  private final Predicate<Level> loggable;
+  private final OverflowPolicy policy;
+  private final String[] messages;
+  private final Level[] levels;
+  private final String[] batchMessages;
+  private final Level[] batchLevels;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Thread drainer;
+  private int head;
+  private int count;
+  private boolean closed;
+  private long dropped;
+  @Nullable
+  private RuntimeException failure;
+
+  AsyncLogOutput(LogOutput delegate, int capacity, OverflowPolicy policy) {
+    this(delegate, level -> true, capacity, policy);
+  }
+
+  /**
+   * @param loggable messages of the levels that don't match are discarded without being buffered
+   */
+  AsyncLogOutput(LogOutput delegate, Predicate<Level> loggable, int capacity, OverflowPolicy policy) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Log buffer size must be greater than zero");
+    }
+    this.delegate = delegate;
+    this.loggable = loggable;
+    this.policy = policy;
+    this.messages = new String[capacity];
+    this.levels = new Level[capacity];
+    this.batchMessages = new String[Math.min(capacity, MAX_BATCH_SIZE)];
+    this.batchLevels = new Level[batchMessages.length];
+    this.drainer = new Thread(this::drain, "sonar-log-drainer");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  @Override
+  public void log(String formattedMessage, Level level) {
+    if (!loggable.test(level)) {
+      return;
+    }
+    lock.lock();
+    try {
+      if (!closed) {
+        enqueue(formattedMessage, level);
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    // Late messages, once the drainer is stopped
+    delegate.log(formattedMessage, level);
+  }
+
+  private void enqueue(String formattedMessage, Level level) {
+    while (count == messages.length) {
+      if (policy == OverflowPolicy.DROP_DEBUG && (level == Level.TRACE || level == Level.DEBUG)) {
+        dropped++;
+        return;
+      }
+      if (policy == OverflowPolicy.DROP_OLDEST && levels[head] != Level.ERROR) {
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        count--;
+        dropped++;
+      } else {
+        notFull.awaitUninterruptibly();
+      }
+    }
+    int tail = (head + count) % messages.length;
+    messages[tail] = formattedMessage;
+    levels[tail] = level;
+    count++;
+    notEmpty.signal();
+  }
+
+  private void drain() {
+    while (true) {
+      int size;
+      lock.lock();
+      try {
+        while (count == 0 && !closed) {
+          notEmpty.awaitUninterruptibly();
+        }
+        if (count == 0) {
+          return;
+        }
+        size = Math.min(count, batchMessages.length);
+        for (int i = 0; i < size; i++) {
+          batchMessages[i] = messages[head];
+          batchLevels[i] = levels[head];
+          messages[head] = null;
+          head = (head + 1) % messages.length;
+        }
+        count -= size;
+        notFull.signalAll();
+      } finally {
+        lock.unlock();
+      }
+      deliver(size);
+    }
+  }
+
+  private void deliver(int size) {
+    for (int i = 0; i < size; i++) {
+      try {
+        delegate.log(batchMessages[i], batchLevels[i]);
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+      batchMessages[i] = null;
+    }
+  }
+
+  /**
+   * Delivers the buffered messages and stops the background thread.
+   */
+  @Override
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+    boolean interrupted = false;
+    while (drainer.isAlive()) {
+      try {
+        drainer.join();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    long droppedCount = droppedCount();
+    if (droppedCount > 0) {
+      delegate.log(droppedCount + " log message(s) dropped because the log buffer was full", Level.WARN);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private long droppedCount() {
+    lock.lock();
+    try {
+      return dropped;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Analysis started by <code>&lt;sonar:sonar async="true"&gt;</code>, and joined by <code>&lt;sonar:await&gt;</code>.
+ * The log messages of the task are kept until the analysis is joined, and then passed to Ant in their original order,
+ * so that they are not interleaved with the ones of the other tasks of the build. At most {@link #MAX_KEPT_MESSAGES}
+ * messages are kept, the following ones being only counted, as the log file of the task keeps them all.
+ * <p>
+ * An analysis that is not joined by the end of the build is joined then, so that its failure still fails the build.
+ */
+class BackgroundAnalysis {
+
+  static final String DEFAULT_ID = "sonar.analysis";
+  static final int MAX_KEPT_MESSAGES = 10_000;
+
+  private final ObjIntConsumer<String> log;
+  private final Runnable onJoin;
+  private final Thread thread;
+  private final List<Message> messages = new ArrayList<>();
+  private int maxKeptMessages = MAX_KEPT_MESSAGES;
+  private int droppedMessages;
+  private boolean replayed;
+  @Nullable
+  private BuildEndListener buildEndListener;
+  @Nullable
+  private volatile Throwable failure;
+
+  /**
+   * @param log where the messages are passed once the analysis is joined
+   * @param onJoin run in the thread joining the analysis, after the messages are passed to Ant
+   */
+  BackgroundAnalysis(String id, Runnable analysis, ObjIntConsumer<String> log, Runnable onJoin) {
+    this.log = log;
+    this.onJoin = onJoin;
+    this.thread = new Thread(() -> {
+      try {
+        analysis.run();
+      } catch (Throwable t) {
+        failure = t;
+      }
+    }, "sonar-analysis-" + id);
+    // joined at the end of the build at the latest
+    thread.setDaemon(true);
+  }
+
+  // VisibleForTesting
+  void setMaxKeptMessages(int maxKeptMessages) {
+    this.maxKeptMessages = maxKeptMessages;
+  }
+
+  /**
+   * @param project build at the end of which the analysis is joined, if it was not before
+   */
+  void start(Project project) {
+    BuildEndListener listener = new BuildEndListener(project) {
+      @Override
+      void buildEnded() {
+        joinAtBuildEnd();
+      }
+    };
+    synchronized (this) {
+      buildEndListener = listener;
+    }
+    listener.register();
+    thread.start();
+  }
+
+  private void joinAtBuildEnd() {
+    if (!isJoined()) {
+      log.accept("The analysis started in the background was not joined with <sonar:await>, waiting for its end", Project.MSG_WARN);
+      join(0);
+    }
+  }
+
+  /**
+   * @return <code>false</code> when the message was not kept because the analysis was already joined
+   */
+  synchronized boolean keep(String message, int level) {
+    if (replayed) {
+      return false;
+    }
+    if (messages.size() < maxKeptMessages) {
+      messages.add(new Message(message, level));
+    } else {
+      droppedMessages++;
+    }
+    return true;
+  }
+
+  /**
+   * Waits for the end of the analysis, passes its log messages to Ant and rethrows its failure, if any.
+   *
+   * @param timeoutSeconds maximum time to wait, or 0 to wait as long as needed
+   */
+  void join(long timeoutSeconds) {
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BuildException("Interrupted while waiting for the analysis", e);
+    }
+    if (thread.isAlive()) {
+      throw new BuildException("The analysis is still running after " + timeoutSeconds + "s");
+    }
+    replay();
+    Throwable t = failure;
+    if (t instanceof BuildException) {
+      throw (BuildException) t;
+    }
+    if (t != null) {
+      throw new BuildException(t);
+    }
+  }
+
+  private void replay() {
+    List<Message> toReplay;
+    int dropped;
+    boolean first;
+    BuildEndListener listener;
+    synchronized (this) {
+      toReplay = new ArrayList<>(messages);
+      messages.clear();
+      dropped = droppedMessages;
+      droppedMessages = 0;
+      first = !replayed;
+      replayed = true;
+      listener = buildEndListener;
+    }
+    toReplay.forEach(message -> log.accept(message.text, message.level));
+    if (dropped > 0) {
+      log.accept(dropped + " log message(s) of the analysis were not kept, set 'logFile' to keep them all", Project.MSG_WARN);
+    }
+    if (first) {
+      if (listener != null) {
+        listener.unregister();
+      }
+      onJoin.run();
+    }
+  }
+
+  private synchronized boolean isJoined() {
+    return replayed;
+  }
+
+  private static class Message {
+    private final String text;
+    private final int level;
+
+    private Message(String text, int level) {
+      this.text = text;
+      this.level = level;
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.SubBuildListener;
+
+/**
+ * Notified of the end of the build running a task, which is a sub-build when the task runs in the project of
+ * <code>&lt;antcall&gt;</code> or <code>&lt;ant&gt;</code>, so that the task can release what it left running.
+ */
+abstract class BuildEndListener implements SubBuildListener {
+
+  private final Project project;
+
+  /**
+   * @param project project of the task
+   */
+  BuildEndListener(Project project) {
+    this.project = project;
+  }
+
+  /**
+   * Registers the listener, which must be unregistered with {@link #unregister()} if it is no longer needed.
+   */
+  void register() {
+    project.addBuildListener(this);
+  }
+
+  void unregister() {
+    project.removeBuildListener(this);
+  }
+
+  abstract void buildEnded();
+
+  @Override
+  public void buildFinished(BuildEvent event) {
+    buildEnded();
+  }
+
+  @Override
+  public void subBuildFinished(BuildEvent event) {
+    if (event.getProject() == project) {
+      buildEnded();
+    }
+  }
+
+  @Override
+  public void buildStarted(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+  @Override
+  public void subBuildStarted(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+  @Override
+  public void targetStarted(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+  @Override
+  public void targetFinished(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+  @Override
+  public void taskStarted(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+  @Override
+  public void taskFinished(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+  @Override
+  public void messageLogged(BuildEvent event) {
+    // only the end of the build matters
+  }
+
+}
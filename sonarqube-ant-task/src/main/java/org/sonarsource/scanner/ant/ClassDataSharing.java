@@ -0,0 +1,186 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.CommandlineJava;
+
+/**
+ * Class Data Sharing archive of the classes loaded by the analyses run in another JVM, so that they don't have to be
+ * loaded and verified again by every forked JVM.
+ * <p>
+ * The first forked JVM dumps the classes it loaded when it exits (<code>-XX:ArchiveClassesAtExit</code>, Java 13 and
+ * later), and the following ones map the archive (<code>-XX:SharedArchiveFile</code>). The options are ignored by older
+ * JVMs. The archive is only valid for the JVM and the jars it was created with, so its name is a hash of the task
+ * version, of the command of the JVM and of the jars of the classpath. A JVM finding an archive that does not match
+ * ignores it. Each JVM dumps to its own temporary file, which is renamed once the JVM exited, so that concurrent builds
+ * never map a partial archive.
+ * <p>
+ * The JVM only archives classes loaded from jars, so archives are not created when the task is loaded from a directory.
+ * The classes of the engine are loaded by the isolated classloader of the scanner API, and are not archived.
+ */
+final class ClassDataSharing {
+
+  static final String DIRECTORY = "ant-cds";
+  private static final String PREFIX = "classes-";
+  private static final String EXTENSION = ".jsa";
+  private static final String TEMP_EXTENSION = ".tmp";
+  private static final String IGNORE_UNRECOGNIZED = "-XX:+IgnoreUnrecognizedVMOptions";
+  /**
+   * Archives of other JVMs or versions of the task that were not used for this long are removed
+   */
+  private static final long UNUSED_ARCHIVE_MILLIS = TimeUnit.DAYS.toMillis(30);
+  /**
+   * Temporary dumps older than this are left by JVMs that were killed
+   */
+  private static final long STALE_DUMP_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final File archive;
+  private final File dump;
+
+  private ClassDataSharing(File archive) {
+    this.archive = archive;
+    this.dump = new File(archive.getPath() + "." + UUID.randomUUID() + TEMP_EXTENSION);
+  }
+
+  /**
+   * @return the archive of the given JVM command and of the given classpath, or <code>null</code> if the classpath
+   * contains directories
+   */
+  @CheckForNull
+  static ClassDataSharing of(File cdsDir, CommandlineJava javaCommand, Collection<File> classpath) {
+    StringBuilder key = new StringBuilder(SonarQubeTaskUtils.getTaskVersion());
+    for (String arg : javaCommand.getVmCommand().getCommandline()) {
+      key.append('\n').append(arg);
+    }
+    File executable = new File(javaCommand.getVmCommand().getExecutable());
+    key.append('\n').append(executable.lastModified());
+    for (File location : classpath) {
+      if (!location.isFile()) {
+        return null;
+      }
+      key.append('\n').append(location.getAbsolutePath()).append(':').append(location.length()).append(':').append(location.lastModified());
+    }
+    return new ClassDataSharing(new File(cdsDir, PREFIX + SonarQubeTaskUtils.shortHash(key.toString()) + EXTENSION));
+  }
+
+  File archive() {
+    return archive;
+  }
+
+  /**
+   * @param dumpAllowed <code>false</code> when the JVM is not waited for, like the daemon, so that its dump could not be
+   * published
+   * @return a copy of the command, using the archive if it exists, or creating it otherwise
+   */
+  CommandlineJava apply(CommandlineJava javaCommand, boolean dumpAllowed) {
+    CommandlineJava command;
+    try {
+      command = (CommandlineJava) javaCommand.clone();
+    } catch (CloneNotSupportedException e) {
+      throw new BuildException("Unable to fork the analysis", e);
+    }
+    if (archive.isFile()) {
+      command.createVmArgument().setValue(IGNORE_UNRECOGNIZED);
+      command.createVmArgument().setValue("-XX:SharedArchiveFile=" + archive.getAbsolutePath());
+      touch(archive);
+    } else if (dumpAllowed && createParent(archive)) {
+      command.createVmArgument().setValue(IGNORE_UNRECOGNIZED);
+      command.createVmArgument().setValue("-XX:ArchiveClassesAtExit=" + dump.getAbsolutePath());
+    }
+    return command;
+  }
+
+  /**
+   * Renames the archive dumped by the JVM started with {@link #apply(CommandlineJava, boolean)}, if any, and removes the
+   * archives that were not used for a long time.
+   */
+  void publish(Task task) {
+    if (!dump.isFile()) {
+      return;
+    }
+    try {
+      try {
+        Files.move(dump.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(dump.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      task.log("Created the class data sharing archive " + archive, Project.MSG_VERBOSE);
+    } catch (IOException e) {
+      task.log("Unable to create the class data sharing archive " + archive + ": " + e.getMessage(), Project.MSG_VERBOSE);
+      deleteQuietly(dump);
+    }
+    removeUnused(archive.getAbsoluteFile().getParentFile(), System.currentTimeMillis());
+  }
+
+  static void removeUnused(File cdsDir, long now) {
+    File[] files = cdsDir.listFiles((dir, name) -> name.startsWith(PREFIX));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      long age = now - file.lastModified();
+      if ((file.getName().endsWith(EXTENSION) && age > UNUSED_ARCHIVE_MILLIS) || (file.getName().endsWith(TEMP_EXTENSION) && age > STALE_DUMP_MILLIS)) {
+        deleteQuietly(file);
+      }
+    }
+  }
+
+  /**
+   * The date of the last use of an archive, for the removal of the unused ones
+   */
+  private static void touch(File file) {
+    try {
+      Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // removed earlier than it could be, and created again
+    }
+  }
+
+  private static boolean createParent(File file) {
+    try {
+      Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static void deleteQuietly(File file) {
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      // removed by a later build
+    }
+  }
+
+}
@@ -0,0 +1,155 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.Map;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.sonarsource.scanner.api.EmbeddedScanner;
+import org.sonarsource.scanner.api.LogOutput;
+import org.sonarsource.scanner.api.System2;
+
+/**
+ * Analysis run in the current JVM with the scanner API. This is the only class of the task creating an
+ * {@link EmbeddedScanner}, so that the scanner API is loaded only once the task decided to run an analysis, and never
+ * by skipped builds.
+ * <p>
+ * A new {@link EmbeddedScanner} is bootstrapped for every analysis: {@link EmbeddedScanner#execute(Map)} closes the
+ * isolated engine classloader once the analysis is over, so a started engine can't be shared between several
+ * executions of the task.
+ */
+final class EmbeddedAnalysis {
+
+  private EmbeddedAnalysis() {
+    // only static methods
+  }
+
+  static EmbeddedScanner newScanner(Map<String, String> properties, LogOutput logOutput) {
+    return newScanner(properties, logOutput, new System2());
+  }
+
+  private static EmbeddedScanner newScanner(Map<String, String> properties, LogOutput logOutput, System2 system) {
+    return EmbeddedScanner.create("Ant", SonarQubeTaskUtils.getTaskVersion(), logOutput, system)
+      .addGlobalProperties(properties);
+  }
+
+  /**
+   * Closes the isolated classloader of a scanner that was started but will not run an analysis. The scanner API only
+   * closes it at the end of {@link EmbeddedScanner#execute(Map)}, so its factory is closed by reflection.
+   */
+  static void release(EmbeddedScanner scanner) {
+    try {
+      Field field = EmbeddedScanner.class.getDeclaredField("launcherFactory");
+      field.setAccessible(true);
+      ((Closeable) field.get(scanner)).close();
+    } catch (ReflectiveOperationException | IOException | RuntimeException e) {
+      // left to the garbage collector
+    }
+  }
+
+  /**
+   * @param lockedCacheDir user cache of the scanner to lock during the bootstrap of the engine, if any
+   */
+  static void run(Map<String, String> properties, LogOutput logOutput, AnalysisTimings timings, @Nullable File lockedCacheDir) {
+    run(properties, logOutput, timings, lockedCacheDir, null);
+  }
+
+  /**
+   * @param prepared engine started by <code>&lt;sonar:prepare&gt;</code>, used instead of bootstrapping a new one when it
+   * fits the analysis
+   */
+  static void run(Map<String, String> properties, LogOutput logOutput, AnalysisTimings timings, @Nullable File lockedCacheDir,
+    @Nullable PreparedEngine prepared) {
+    EmbeddedScanner runner = prepared == null ? null : take(prepared, properties, logOutput, timings);
+    if (runner == null) {
+      runner = newScanner(properties, logOutput);
+      start(runner, timings, lockedCacheDir);
+    }
+    execute(runner, properties, timings, lockedCacheDir);
+  }
+
+  /**
+   * Runs the analysis without reading the environment variables of this JVM, which belong to another build, like in the
+   * daemon. The client resolved them into the properties with {@link AnalysisDaemon#resolveEnvironment(Map, Map)}.
+   */
+  static void runWithoutEnvironment(Map<String, String> properties, LogOutput logOutput, AnalysisTimings timings, @Nullable File lockedCacheDir) {
+    EmbeddedScanner runner = newScanner(properties, logOutput, new System2() {
+      @Override
+      public String getEnvironmentVariable(String key) {
+        return null;
+      }
+    });
+    start(runner, timings, lockedCacheDir);
+    execute(runner, properties, timings, lockedCacheDir);
+  }
+
+  /**
+   * The use of the entries of the scanner cache is only recorded when its size is limited, which is when it is locked.
+   */
+  private static void execute(EmbeddedScanner runner, Map<String, String> properties, AnalysisTimings timings, @Nullable File lockedCacheDir) {
+    long start = System.nanoTime();
+    try {
+      if (lockedCacheDir == null) {
+        runner.execute(properties);
+      } else {
+        ScannerCache.recordingUse(lockedCacheDir, () -> runner.execute(properties));
+      }
+    } finally {
+      timings.record(AnalysisTimings.Phase.ANALYSIS, start);
+    }
+  }
+
+  private static void start(EmbeddedScanner runner, AnalysisTimings timings, @Nullable File lockedCacheDir) {
+    long start = System.nanoTime();
+    try {
+      if (lockedCacheDir == null) {
+        runner.start();
+      } else {
+        ScannerCache.locked(lockedCacheDir, runner::start);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to lock the scanner cache " + lockedCacheDir, e);
+    } finally {
+      timings.record(AnalysisTimings.Phase.BOOTSTRAP, start);
+    }
+  }
+
+  /**
+   * The bootstrap phase is the time spent waiting for the prepared engine.
+   */
+  @CheckForNull
+  private static EmbeddedScanner take(PreparedEngine prepared, Map<String, String> properties, LogOutput logOutput, AnalysisTimings timings) {
+    long start = System.nanoTime();
+    try {
+      return prepared.take(properties, logOutput);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BuildException("Interrupted while waiting for the prepared scanner engine", e);
+    } finally {
+      timings.record(AnalysisTimings.Phase.BOOTSTRAP, start);
+    }
+  }
+
+}
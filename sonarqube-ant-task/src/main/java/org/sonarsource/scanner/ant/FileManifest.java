@@ -0,0 +1,262 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Content fingerprints of the files of some directory trees, plus a fingerprint of the settings they were analysed with.
+ * Files whose size and modification date did not change since a previous manifest keep their previous fingerprint, the
+ * others are hashed in parallel.
+ */
+class FileManifest {
+
+  private static final String SETTINGS_KEY = "@settings";
+  private static final String HASH_ALGORITHM = "SHA-256";
+  // Below this size, reading the file is cheaper than mapping it
+  private static final long MAPPING_THRESHOLD = 64 * 1024L;
+  private static final long MAX_MAPPED_CHUNK = 64 * 1024 * 1024L;
+
+  private final String settings;
+  private final SortedMap<String, Entry> entries;
+
+  private FileManifest(String settings, SortedMap<String, Entry> entries) {
+    this.settings = settings;
+    this.entries = entries;
+  }
+
+  String settings() {
+    return settings;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  /**
+   * @param excludedDirs directories whose files must not be fingerprinted, like the ones written by the analysis itself
+   */
+  static FileManifest compute(Collection<File> roots, Collection<File> excludedDirs, String settings, @Nullable FileManifest previous)
+    throws IOException {
+    List<Path> excluded = excludedDirs.stream().map(dir -> dir.toPath().toAbsolutePath().normalize()).collect(toList());
+    try {
+      List<Path> files = new ArrayList<>();
+      for (File root : roots) {
+        if (root.isFile()) {
+          files.add(root.toPath());
+        } else if (root.isDirectory()) {
+          // the walk reports the directories it can't read, and the files deleted meanwhile, unchecked
+          try (Stream<Path> paths = Files.walk(root.toPath().toAbsolutePath().normalize())) {
+            paths.filter(path -> excluded.stream().noneMatch(path::startsWith))
+              .filter(Files::isRegularFile)
+              .forEach(files::add);
+          }
+        }
+      }
+      List<Map.Entry<String, Entry>> computed = files.parallelStream()
+        .map(path -> fingerprint(path, previous))
+        .collect(toList());
+      SortedMap<String, Entry> entries = new TreeMap<>();
+      computed.forEach(e -> entries.put(e.getKey(), e.getValue()));
+      return new FileManifest(settings, entries);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static Map.Entry<String, Entry> fingerprint(Path path, @Nullable FileManifest previous) {
+    String key = path.toAbsolutePath().toString();
+    try {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      long size = attributes.size();
+      long lastModified = attributes.lastModifiedTime().toMillis();
+      Entry known = previous == null ? null : previous.entries.get(key);
+      if (known != null && known.size == size && known.lastModified == lastModified) {
+        return new SimpleImmutableEntry<>(key, known);
+      }
+      return new SimpleImmutableEntry<>(key, new Entry(size, lastModified, hash(path, size)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static String hash(Path path, long size) throws IOException {
+    MessageDigest digest = newDigest();
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (size >= MAPPING_THRESHOLD) {
+        for (long position = 0; position < size; position += MAX_MAPPED_CHUNK) {
+          digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_CHUNK, size - position)));
+        }
+      } else {
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+          // read fully
+        }
+        buffer.flip();
+        digest.update(buffer);
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Fingerprint of the given properties, independent of their order.
+   */
+  static String hash(Map<String, String> properties) {
+    MessageDigest digest = newDigest();
+    new TreeMap<>(properties).forEach((key, value) -> {
+      digest.update(key.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(value.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    });
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @return absolute paths of the files added, modified or deleted since the given manifest
+   */
+  SortedSet<String> changedSince(FileManifest other) {
+    SortedSet<String> changed = new TreeSet<>();
+    entries.forEach((path, entry) -> {
+      Entry otherEntry = other.entries.get(path);
+      if (otherEntry == null || !otherEntry.hash.equals(entry.hash)) {
+        changed.add(path);
+      }
+    });
+    other.entries.keySet().stream()
+      .filter(path -> !entries.containsKey(path))
+      .forEach(changed::add);
+    return changed;
+  }
+
+  @CheckForNull
+  static FileManifest load(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    } catch (IOException | IllegalArgumentException e) {
+      return null;
+    }
+    String settings = props.getProperty(SETTINGS_KEY);
+    if (settings == null) {
+      return null;
+    }
+    SortedMap<String, Entry> entries = new TreeMap<>();
+    for (String path : props.stringPropertyNames()) {
+      if (!SETTINGS_KEY.equals(path)) {
+        Entry entry = Entry.parse(props.getProperty(path));
+        if (entry == null) {
+          return null;
+        }
+        entries.put(path, entry);
+      }
+    }
+    return new FileManifest(settings, entries);
+  }
+
+  void save(File file) throws IOException {
+    Properties props = new Properties();
+    props.setProperty(SETTINGS_KEY, settings);
+    entries.forEach((path, entry) -> props.setProperty(path, entry.toString()));
+    Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      props.store(writer, "SonarQube Ant Task file manifest");
+    }
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(HASH_ALGORITHM + " is not supported", e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return sb.toString();
+  }
+
+  private static class Entry {
+    private final long size;
+    private final long lastModified;
+    private final String hash;
+
+    Entry(long size, long lastModified, String hash) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.hash = hash;
+    }
+
+    @CheckForNull
+    static Entry parse(String value) {
+      String[] fields = value.split(":");
+      if (fields.length != 3) {
+        return null;
+      }
+      try {
+        return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return size + ":" + lastModified + ":" + hash;
+    }
+  }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Watches the analysed trees for changes. The watch service of the JDK only watches single directories, so every
+ * directory of the trees is registered, including the ones created later. The parent directory of each root is watched
+ * too, so that a root deleted and created again, like the output directory of a clean compilation, is watched again.
+ * Directories deleted while they are registered are skipped.
+ */
+class FileWatcher implements AutoCloseable {
+
+  private final WatchService watchService;
+  private final List<Path> roots;
+  private final List<Path> excluded;
+  private final Map<WatchKey, Path> directories = new HashMap<>();
+  private final Set<Path> registered = new HashSet<>();
+
+  /**
+   * @param excludedDirs directories whose changes are ignored, like the ones written by the analysis itself
+   */
+  FileWatcher(Collection<File> roots, Collection<File> excludedDirs) throws IOException {
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.roots = roots.stream().map(root -> root.toPath().toAbsolutePath().normalize()).collect(toList());
+    this.excluded = excludedDirs.stream().map(dir -> dir.toPath().toAbsolutePath().normalize()).collect(toList());
+    try {
+      for (Path root : this.roots) {
+        Path parent = root.getParent();
+        if (parent != null && Files.isDirectory(parent)) {
+          register(parent);
+        }
+        registerTree(root);
+      }
+    } catch (IOException e) {
+      watchService.close();
+      throw e;
+    }
+  }
+
+  int size() {
+    return directories.size();
+  }
+
+  private void registerTree(Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (!isWatched(dir)) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        register(dir);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        if (e instanceof NoSuchFileException) {
+          // deleted while walking, like during a clean
+          return FileVisitResult.CONTINUE;
+        }
+        throw e;
+      }
+    });
+  }
+
+  private void register(Path dir) throws IOException {
+    if (registered.contains(dir)) {
+      return;
+    }
+    WatchKey key;
+    try {
+      key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      // deleted meanwhile, its creation will be seen through its parent
+      return;
+    }
+    directories.put(key, dir);
+    registered.add(dir);
+  }
+
+  /**
+   * Events of the parent directories of the roots are only kept for the roots themselves.
+   */
+  private boolean isWatched(Path path) {
+    return roots.stream().anyMatch(path::startsWith) && excluded.stream().noneMatch(path::startsWith);
+  }
+
+  /**
+   * Waits for a change, then for the end of the burst of changes it belongs to, like the saving of several files or a
+   * compilation.
+   *
+   * @param quietPeriodMillis time without changes that ends a burst
+   * @return the changed paths. A directory whose events were lost is returned itself.
+   */
+  SortedSet<Path> awaitChanges(long quietPeriodMillis) throws InterruptedException, IOException {
+    SortedSet<Path> changed = new TreeSet<>();
+    try {
+      WatchKey key = watchService.take();
+      while (key != null) {
+        collect(key, changed);
+        key = watchService.poll(quietPeriodMillis, TimeUnit.MILLISECONDS);
+      }
+    } catch (ClosedWatchServiceException e) {
+      throw new InterruptedException("Watch closed");
+    }
+    return changed;
+  }
+
+  private void collect(WatchKey key, Collection<Path> changed) throws IOException {
+    Path dir = directories.get(key);
+    if (dir == null) {
+      key.cancel();
+      return;
+    }
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        changed.add(dir);
+        continue;
+      }
+      Path path = dir.resolve((Path) event.context());
+      if (!isWatched(path)) {
+        continue;
+      }
+      changed.add(path);
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+        registerTree(path);
+      }
+    }
+    if (!key.reset()) {
+      registered.remove(directories.remove(key));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+}
@@ -0,0 +1,335 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.taskdefs.LogOutputStream;
+import org.apache.tools.ant.taskdefs.PumpStreamHandler;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.apache.tools.ant.types.Path;
+import org.sonarsource.scanner.api.EmbeddedScanner;
+import org.sonarsource.scanner.api.LogOutput;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+/**
+ * Analysis run in a separate JVM, so that its memory is bounded by its own settings and released as soon as it is over.
+ * <p>
+ * The analysis properties are passed in a temporary file, which is not readable by other users and keeps the credentials
+ * out of the command line. The forked JVM prints its log messages to the standard output, one per line, tagged with
+ * their level: <code>[sonar:INFO] message</code>. Line breaks and backslashes of the messages are escaped. Other lines,
+ * like the ones printed directly by plugins, are logged as is.
+ */
+public final class ForkedAnalysis {
+
+  private static final String TAG_PREFIX = "[sonar:";
+  private static final String TAG_SUFFIX = "] ";
+  /**
+   * Tag of the message of the exception that failed the analysis
+   */
+  private static final String FAILURE_TAG = "FAILURE";
+  /**
+   * Tag of the duration of a phase of the analysis: <code>[sonar:TIMING] bootstrap=1234</code>
+   */
+  private static final String TIMING_TAG = "TIMING";
+  private static final int EXIT_FAILURE = 1;
+  private static final int EXIT_USAGE = 2;
+  private static final List<Class<?>> CLASSPATH = Arrays.asList(ForkedAnalysis.class, EmbeddedScanner.class, Project.class);
+
+  private ForkedAnalysis() {
+    // only static methods
+  }
+
+  /**
+   * Entry point of the forked JVM.
+   *
+   * @param args the file of the analysis properties, optionally followed by the scanner cache to lock during the
+   * bootstrap of the engine
+   */
+  public static void main(String[] args) {
+    System.exit(run(args, System.out));
+  }
+
+  // VisibleForTesting
+  static int run(String[] args, PrintStream out) {
+    if (args.length != 1 && args.length != 2) {
+      out.println(encode(Level.ERROR.name(), "Usage: " + ForkedAnalysis.class.getName() + " <properties file> [<cache directory>]"));
+      return EXIT_USAGE;
+    }
+    Map<String, String> properties;
+    try {
+      properties = load(new File(args[0]));
+    } catch (IOException e) {
+      return fail(e, out);
+    }
+    return run(properties, args.length == 2 ? new File(args[1]) : null, out);
+  }
+
+  /**
+   * Runs the analysis in this JVM and prints its log messages, its timings and its failure, if any, encoded.
+   *
+   * @return the exit code of the analysis
+   */
+  static int run(Map<String, String> properties, @Nullable File lockedCacheDir, PrintStream out) {
+    return run(properties, lockedCacheDir, out, false);
+  }
+
+  /**
+   * @param ignoreEnvironment <code>true</code> when the environment variables read by the scanner API were resolved into
+   * the properties, and those of this JVM must be ignored
+   */
+  static int run(Map<String, String> properties, @Nullable File lockedCacheDir, PrintStream out, boolean ignoreEnvironment) {
+    LogOutput logOutput = (message, level) -> out.println(encode(level.name(), message));
+    AnalysisTimings timings = new AnalysisTimings();
+    try {
+      if (ignoreEnvironment) {
+        EmbeddedAnalysis.runWithoutEnvironment(properties, logOutput, timings, lockedCacheDir);
+      } else {
+        EmbeddedAnalysis.run(properties, logOutput, timings, lockedCacheDir);
+      }
+      return 0;
+    } catch (Exception e) {
+      return fail(e, out);
+    } finally {
+      for (AnalysisTimings.Phase phase : AnalysisTimings.Phase.values()) {
+        Long millis = timings.get(phase);
+        if (millis != null) {
+          out.println(encode(TIMING_TAG, phase.key() + "=" + millis));
+        }
+      }
+    }
+  }
+
+  private static int fail(Exception e, PrintStream out) {
+    StringWriter stackTrace = new StringWriter();
+    e.printStackTrace(new PrintWriter(stackTrace));
+    out.println(encode(Level.DEBUG.name(), stackTrace.toString()));
+    out.println(encode(FAILURE_TAG, e.getMessage() != null ? e.getMessage() : e.toString()));
+    return EXIT_FAILURE;
+  }
+
+  /**
+   * Runs the analysis in a JVM forked with the given command, and passes its log messages to the given output.
+   *
+   * @param javaCommand JVM executable and options of the forked JVM. It is not modified.
+   * @param timings where the durations of the phases of the forked analysis are recorded
+   * @param lockedCacheDir user cache of the scanner to lock during the bootstrap of the engine, if any
+   */
+  static void launch(Task task, CommandlineJava javaCommand, Map<String, String> properties, LogOutput logOutput, AnalysisTimings timings,
+    @Nullable File lockedCacheDir) {
+    File propertiesFile = null;
+    try {
+      propertiesFile = save(properties);
+      CommandlineJava command = (CommandlineJava) javaCommand.clone();
+      command.setClassname(ForkedAnalysis.class.getName());
+      Path classpath = command.createClasspath(task.getProject());
+      for (File location : classpath()) {
+        classpath.createPathElement().setLocation(location);
+      }
+      command.createArgument().setFile(propertiesFile);
+      if (lockedCacheDir != null) {
+        command.createArgument().setFile(lockedCacheDir);
+      }
+      task.log("Forking " + command.describeCommand(), Project.MSG_VERBOSE);
+
+      ForkedLogOutputStream out = new ForkedLogOutputStream(task, logOutput, timings);
+      Execute execute = new Execute(new PumpStreamHandler(out, new LogOutputStream(task, Project.MSG_WARN)));
+      execute.setCommandline(command.getCommandline());
+      int exitCode = execute.execute();
+      if (out.failure() != null) {
+        throw new BuildException(out.failure());
+      }
+      if (Execute.isFailure(exitCode)) {
+        throw new BuildException("Forked analysis failed with exit code " + exitCode);
+      }
+    } catch (IOException | CloneNotSupportedException e) {
+      throw new BuildException("Unable to fork the analysis", e);
+    } finally {
+      if (propertiesFile != null && !propertiesFile.delete()) {
+        propertiesFile.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Locations of this task, of the scanner API and of Ant, which are all needed by {@link #main(String[])}.
+   */
+  static Set<File> classpath() {
+    Set<File> locations = new LinkedHashSet<>();
+    for (Class<?> clazz : CLASSPATH) {
+      URL url = SonarQubeTaskUtils.getJarPath(clazz);
+      if (url == null) {
+        throw new BuildException("Unable to locate " + clazz.getName() + " for the forked analysis");
+      }
+      try {
+        locations.add(new File(url.toURI()));
+      } catch (URISyntaxException | IllegalArgumentException e) {
+        throw new BuildException("Unable to locate " + clazz.getName() + " for the forked analysis: " + url, e);
+      }
+    }
+    return locations;
+  }
+
+  private static File save(Map<String, String> properties) throws IOException {
+    File file = Files.createTempFile("sonar-analysis", ".properties").toFile();
+    Properties props = new Properties();
+    props.putAll(properties);
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      props.store(writer, null);
+    }
+    return file;
+  }
+
+  private static Map<String, String> load(File file) throws IOException {
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    }
+    Map<String, String> properties = new TreeMap<>();
+    SonarQubeTask.putAll(props, properties);
+    return properties;
+  }
+
+  static String encode(String tag, String message) {
+    StringBuilder sb = new StringBuilder(message.length() + 16).append(TAG_PREFIX).append(tag).append(TAG_SUFFIX);
+    for (int i = 0; i < message.length(); i++) {
+      char c = message.charAt(i);
+      switch (c) {
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        default:
+          sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @return the tag and the message of an encoded line, or <code>null</code> if the line is not encoded
+   */
+  @CheckForNull
+  static String[] decode(String line) {
+    int end = line.indexOf(TAG_SUFFIX);
+    if (!line.startsWith(TAG_PREFIX) || end < 0) {
+      return null;
+    }
+    String tag = line.substring(TAG_PREFIX.length(), end);
+    StringBuilder message = new StringBuilder(line.length() - end);
+    for (int i = end + TAG_SUFFIX.length(); i < line.length(); i++) {
+      char c = line.charAt(i);
+      if (c == '\\' && i + 1 < line.length()) {
+        i++;
+        char escaped = line.charAt(i);
+        message.append(escaped == 'n' ? '\n' : (escaped == 'r' ? '\r' : escaped));
+      } else {
+        message.append(c);
+      }
+    }
+    return new String[] {tag, message.toString()};
+  }
+
+  @CheckForNull
+  private static Level toLevel(String tag) {
+    for (Level level : Level.values()) {
+      if (level.name().equals(tag)) {
+        return level;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Decodes the standard output of the forked JVM.
+   */
+  static class ForkedLogOutputStream extends LogOutputStream {
+    private final LogOutput logOutput;
+    private final AnalysisTimings timings;
+    @Nullable
+    private String failure;
+
+    ForkedLogOutputStream(Task task, LogOutput logOutput, AnalysisTimings timings) {
+      super(task, Project.MSG_INFO);
+      this.logOutput = logOutput;
+      this.timings = timings;
+    }
+
+    @Override
+    protected void processLine(String line, int level) {
+      String[] decoded = decode(line);
+      Level logLevel = decoded == null ? null : toLevel(decoded[0]);
+      if (logLevel != null) {
+        logOutput.log(decoded[1], logLevel);
+      } else if (decoded != null && FAILURE_TAG.equals(decoded[0])) {
+        failure = decoded[1];
+      } else if (decoded != null && TIMING_TAG.equals(decoded[0])) {
+        recordTiming(decoded[1]);
+      } else {
+        logOutput.log(line, Level.INFO);
+      }
+    }
+
+    private void recordTiming(String timing) {
+      int separator = timing.indexOf('=');
+      AnalysisTimings.Phase phase = separator < 0 ? null : AnalysisTimings.Phase.fromKey(timing.substring(0, separator));
+      if (phase != null) {
+        try {
+          timings.set(phase, Long.parseLong(timing.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+          // not a timing of this version of the task
+        }
+      }
+    }
+
+    @CheckForNull
+    String failure() {
+      return failure;
+    }
+  }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.Project;
+import org.sonarsource.scanner.api.EmbeddedScanner;
+import org.sonarsource.scanner.api.LogOutput;
+
+/**
+ * Scanner engine started in the background by <code>&lt;sonar:prepare&gt;</code>, and used by the next
+ * <code>&lt;sonar:sonar&gt;</code> of the build instead of starting its own.
+ * <p>
+ * The engine is started with the properties known when the build starts, and the analysis is run with the ones known
+ * when <code>&lt;sonar:sonar&gt;</code> runs. The engine is only used when the properties used to connect to the server
+ * are the same, since it is bound to them. The log messages of the bootstrap are kept until the engine is taken, and
+ * then passed to the output of the analysis, which receives all the following messages.
+ * <p>
+ * An engine that no analysis used, because none ran or because the properties changed, is released once it is started,
+ * and at the end of the build at the latest.
+ */
+class PreparedEngine implements LogOutput {
+
+  static final String DEFAULT_ID = "sonar.engine";
+  /**
+   * Properties the engine is bound to once started
+   */
+  private static final List<String> CONNECTION_PROPERTIES = Arrays.asList("sonar.host.url", "sonar.token", "sonar.login", "sonar.password",
+    "sonar.userHome", "sonar.scanner.proxyHost", "sonar.scanner.proxyPort");
+
+  private final Map<String, String> properties;
+  private final EmbeddedScanner scanner;
+  private final Thread thread;
+  private final List<Message> messages = new ArrayList<>();
+  @Nullable
+  private LogOutput logOutput;
+  @Nullable
+  private volatile Exception failure;
+  private boolean taken;
+  private boolean handedOut;
+  private boolean started;
+  private boolean released;
+  @Nullable
+  private BuildEndListener buildEndListener;
+
+  /**
+   * @param cacheDir user cache of the scanner, locked during the bootstrap like by <code>&lt;sonar:warmup&gt;</code>
+   */
+  PreparedEngine(String id, Map<String, String> properties, File cacheDir) {
+    this.properties = properties;
+    this.scanner = EmbeddedAnalysis.newScanner(properties, this);
+    this.thread = new Thread(() -> {
+      try {
+        ScannerCache.locked(cacheDir, scanner::start);
+      } catch (IOException | RuntimeException e) {
+        failure = e;
+      }
+      boolean discarded;
+      synchronized (this) {
+        started = true;
+        discarded = released;
+      }
+      if (discarded) {
+        EmbeddedAnalysis.release(scanner);
+      }
+    }, "sonar-prepare-" + id);
+    thread.setDaemon(true);
+  }
+
+  /**
+   * @param project build at the end of which the engine is released, if no analysis took it
+   */
+  void start(Project project) {
+    BuildEndListener listener = new BuildEndListener(project) {
+      @Override
+      void buildEnded() {
+        release();
+      }
+    };
+    synchronized (this) {
+      buildEndListener = listener;
+    }
+    listener.register();
+    thread.start();
+  }
+
+  /**
+   * Releases the engine unless it was handed out to an analysis, which closes it: now if it is started, or else as soon
+   * as it is.
+   */
+  void release() {
+    boolean releaseNow;
+    synchronized (this) {
+      if (released || handedOut) {
+        return;
+      }
+      released = true;
+      taken = true;
+      releaseNow = started;
+    }
+    unregister();
+    if (releaseNow) {
+      EmbeddedAnalysis.release(scanner);
+    }
+  }
+
+  private void unregister() {
+    BuildEndListener listener;
+    synchronized (this) {
+      listener = buildEndListener;
+      buildEndListener = null;
+    }
+    if (listener != null) {
+      listener.unregister();
+    }
+  }
+
+  @Override
+  public synchronized void log(String formattedMessage, Level level) {
+    if (logOutput == null) {
+      messages.add(new Message(formattedMessage, level));
+    } else {
+      logOutput.log(formattedMessage, level);
+    }
+  }
+
+  synchronized boolean isTaken() {
+    return taken;
+  }
+
+  // VisibleForTesting
+  synchronized boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * Waits until the engine is started, and passes its log messages to the given output from then on.
+   *
+   * @param analysisProperties properties of the analysis, which must connect to the same server as the engine
+   * @return the started engine, or <code>null</code> if it can't be used for this analysis, with the reason logged
+   */
+  @CheckForNull
+  EmbeddedScanner take(Map<String, String> analysisProperties, LogOutput analysisLogOutput) throws InterruptedException {
+    synchronized (this) {
+      if (taken) {
+        analysisLogOutput.log("The prepared scanner engine was already used by a previous analysis", Level.DEBUG);
+        return null;
+      }
+      taken = true;
+    }
+    for (String key : CONNECTION_PROPERTIES) {
+      if (!Objects.equals(properties.get(key), analysisProperties.get(key))) {
+        analysisLogOutput.log("The prepared scanner engine is not used, since '" + key + "' changed since it was started", Level.INFO);
+        release();
+        return null;
+      }
+    }
+    thread.join();
+    synchronized (this) {
+      messages.forEach(message -> analysisLogOutput.log(message.text, message.level));
+      messages.clear();
+      logOutput = analysisLogOutput;
+    }
+    Exception e = failure;
+    if (e != null) {
+      analysisLogOutput.log("Unable to prepare the scanner engine, starting it again: " + e.getMessage(), Level.WARN);
+      release();
+      return null;
+    }
+    synchronized (this) {
+      if (released) {
+        return null;
+      }
+      handedOut = true;
+    }
+    unregister();
+    return scanner;
+  }
+
+  private static class Message {
+    private final String text;
+    private final Level level;
+
+    private Message(String text, Level level) {
+      this.text = text;
+      this.level = level;
+    }
+  }
+
+}
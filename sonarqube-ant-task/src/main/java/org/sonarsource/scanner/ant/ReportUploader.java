@@ -0,0 +1,272 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Submits analysis reports kept on disk to the Compute Engine of the server, like the scanner engine does at the end of
+ * an analysis. The report directory is zipped while it is sent, so it is never held in memory.
+ * <p>
+ * The server, the proxy and the timeouts are the ones of the scanner API: <code>sonar.host.url</code> or the
+ * environment, <code>sonar.scanner.proxyHost</code> and <code>sonar.scanner.proxyPort</code> or the
+ * <code>http.proxyHost</code> system properties, and <code>sonar.ws.timeout</code> in seconds.
+ */
+class ReportUploader {
+
+  static final String REPORT_DIR = "scanner-report";
+  /**
+   * Written by the engine next to the report once it submitted it
+   */
+  static final String REPORT_TASK_FILE = "report-task.txt";
+  private static final String SUBMIT_PATH = "/api/ce/submit";
+  private static final Pattern TASK_ID = Pattern.compile("\"taskId\"\\s*:\\s*\"([^\"]+)\"");
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final String PROXY_HOST_PROPERTY = "sonar.scanner.proxyHost";
+  private static final String PROXY_PORT_PROPERTY = "sonar.scanner.proxyPort";
+  private static final String TIMEOUT_PROPERTY = "sonar.ws.timeout";
+  private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+  private static final int DEFAULT_READ_TIMEOUT_SECONDS = 60;
+
+  private final String hostUrl;
+  @Nullable
+  private final String organization;
+  @Nullable
+  private final String authorization;
+  @Nullable
+  private final Proxy proxy;
+  private final int readTimeoutMillis;
+
+  /**
+   * @param env environment variables of the build, which may set the server like for the scanner API
+   * @throws IllegalArgumentException if the proxy port or the timeout is not a number
+   */
+  ReportUploader(Map<String, String> properties, Map<String, String> env) {
+    this.hostUrl = AnalysisDaemon.resolveEnvironment(properties, env)
+      .getOrDefault(AnalysisDaemon.HOST_URL_PROPERTY, "http://localhost:9000").replaceAll("/+$", "");
+    String org = properties.get("sonar.organization");
+    this.organization = org == null || org.isEmpty() ? null : org;
+    this.authorization = authorization(properties);
+    this.proxy = proxy(properties);
+    this.readTimeoutMillis = 1000 * parseInt(properties, TIMEOUT_PROPERTY, DEFAULT_READ_TIMEOUT_SECONDS);
+  }
+
+  /**
+   * @return <code>null</code> to use the proxy of the JVM, if any
+   */
+  @Nullable
+  private static Proxy proxy(Map<String, String> properties) {
+    String host = properties.get(PROXY_HOST_PROPERTY);
+    if (host == null || host.isEmpty()) {
+      return null;
+    }
+    return new Proxy(Proxy.Type.HTTP, InetSocketAddress.createUnresolved(host, parseInt(properties, PROXY_PORT_PROPERTY, 80)));
+  }
+
+  private static int parseInt(Map<String, String> properties, String key, int defaultValue) {
+    String value = properties.get(key);
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid value of '" + key + "', expected a number: " + value, e);
+    }
+  }
+
+  /**
+   * Same credentials as the scanner: <code>sonar.token</code>, or <code>sonar.login</code> and <code>sonar.password</code>.
+   */
+  @Nullable
+  private static String authorization(Map<String, String> properties) {
+    String login = properties.get("sonar.token");
+    String password = "";
+    if (login == null || login.isEmpty()) {
+      login = properties.get("sonar.login");
+      password = properties.getOrDefault("sonar.password", "");
+    }
+    if (login == null || login.isEmpty()) {
+      return null;
+    }
+    return "Basic " + Base64.getEncoder().encodeToString((login + ":" + password).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param characteristics like <code>branch=feature/x</code>
+   * @return the id of the Compute Engine task processing the report
+   */
+  String submit(File reportDir, String projectKey, List<String> characteristics) throws IOException {
+    String boundary = "----sonar-ant-" + UUID.randomUUID();
+    URL url = new URL(hostUrl + SUBMIT_PATH);
+    HttpURLConnection connection = (HttpURLConnection) (proxy == null ? url.openConnection() : url.openConnection(proxy));
+    try {
+      connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+      connection.setReadTimeout(readTimeoutMillis);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setChunkedStreamingMode(CHUNK_SIZE);
+      connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+      connection.setRequestProperty("User-Agent", "ScannerAnt/" + SonarQubeTaskUtils.getTaskVersion());
+      if (authorization != null) {
+        connection.setRequestProperty("Authorization", authorization);
+      }
+      try (OutputStream out = connection.getOutputStream()) {
+        writeField(out, boundary, "projectKey", projectKey);
+        if (organization != null) {
+          writeField(out, boundary, "organization", organization);
+        }
+        for (String characteristic : characteristics) {
+          writeField(out, boundary, "characteristic", characteristic);
+        }
+        writeAscii(out, "--" + boundary + "\r\nContent-Disposition: form-data; name=\"report\"; filename=\"report.zip\"\r\n"
+          + "Content-Type: application/zip\r\n\r\n");
+        zip(reportDir.toPath(), out);
+        writeAscii(out, "\r\n--" + boundary + "--\r\n");
+      }
+      int status = connection.getResponseCode();
+      if (status != HttpURLConnection.HTTP_OK) {
+        String message = "Server returned status " + status + " for " + SUBMIT_PATH + ": " + read(connection.getErrorStream());
+        // the server may be restarting, while it would reject the same request again
+        throw status >= HttpURLConnection.HTTP_INTERNAL_ERROR ? new IOException(message) : new RejectedException(message);
+      }
+      String response = read(connection.getInputStream());
+      Matcher matcher = TASK_ID.matcher(response);
+      if (!matcher.find()) {
+        throw new RejectedException("Unexpected response of " + SUBMIT_PATH + ": " + response);
+      }
+      return matcher.group(1);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * @return the id of the Compute Engine task of the report, if the engine submitted it after writing it
+   */
+  @CheckForNull
+  static String submittedTaskId(File reportDir) throws IOException {
+    Path reportTask = reportDir.toPath().resolveSibling(REPORT_TASK_FILE);
+    if (!Files.isRegularFile(reportTask)) {
+      return null;
+    }
+    long written;
+    try (Stream<Path> paths = Files.walk(reportDir.toPath())) {
+      written = paths.mapToLong(path -> path.toFile().lastModified()).max().orElse(0L);
+    }
+    if (Files.getLastModifiedTime(reportTask).toMillis() < written) {
+      // submitted by a previous analysis
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(reportTask)) {
+      properties.load(in);
+    }
+    return properties.getProperty("ceTaskId");
+  }
+
+  private static void writeField(OutputStream out, String boundary, String name, String value) throws IOException {
+    writeAscii(out, "--" + boundary + "\r\nContent-Disposition: form-data; name=\"" + name + "\"\r\n\r\n");
+    out.write(value.getBytes(StandardCharsets.UTF_8));
+    writeAscii(out, "\r\n");
+  }
+
+  private static void writeAscii(OutputStream out, String value) throws IOException {
+    out.write(value.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static void zip(Path dir, OutputStream out) throws IOException {
+    List<Path> files;
+    try (Stream<Path> paths = Files.walk(dir)) {
+      files = paths.filter(Files::isRegularFile).sorted(Comparator.naturalOrder()).collect(toList());
+    }
+    // Closing the zip must not close the request body, which still needs the closing boundary
+    ZipOutputStream zip = new ZipOutputStream(new FilterOutputStream(out) {
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        flush();
+      }
+    });
+    for (Path file : files) {
+      zip.putNextEntry(new ZipEntry(dir.relativize(file).toString().replace(File.separatorChar, '/')));
+      Files.copy(file, zip);
+      zip.closeEntry();
+    }
+    zip.close();
+  }
+
+  /**
+   * Submission answered by the server, which must not be attempted again: the server would reject it again, or it
+   * accepted it already.
+   */
+  static class RejectedException extends IOException {
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+
+  private static String read(@Nullable InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    try (InputStream input = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+}
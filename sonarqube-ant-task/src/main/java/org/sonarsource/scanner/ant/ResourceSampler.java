@@ -0,0 +1,222 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjIntConsumer;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.Project;
+
+/**
+ * Samples the heap, the garbage collections, the CPU time and the threads of the JVM at a fixed interval while the
+ * analysis runs, writes them as CSV and reports the samples crossing the thresholds.
+ * <p>
+ * The heap usage compared to its threshold is the one measured after the last garbage collection, so that garbage not
+ * collected yet doesn't raise false alarms. The GC time compared to its threshold is the share of the last interval
+ * spent in garbage collections.
+ */
+class ResourceSampler implements AutoCloseable {
+
+  static final String CSV_HEADER = "elapsedMs,heapUsedBytes,heapAfterGcBytes,heapMaxBytes,gcCount,gcTimeMs,processCpuMs,threads";
+
+  private final long intervalMillis;
+  private final int maxHeapUsage;
+  private final int maxGcTime;
+  private final ObjIntConsumer<String> log;
+  private final int thresholdLevel;
+  @Nullable
+  private final BufferedWriter csv;
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+  private final List<MemoryPoolMXBean> pools = ManagementFactory.getMemoryPoolMXBeans();
+  private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+  private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final long startNanos = System.nanoTime();
+  private final Thread thread;
+  private long previousGcTime;
+  private long previousSampleNanos = startNanos;
+  @Nullable
+  private volatile String breach;
+  private boolean heapReported;
+  private boolean gcReported;
+
+  /**
+   * @param csvFile where the samples are written, if any
+   * @param maxHeapUsage percentage of the maximum heap size, or 0 for no threshold
+   * @param maxGcTime percentage of the time spent in garbage collections, or 0 for no threshold
+   * @param failAfterThreshold <code>true</code> to report the crossed thresholds as errors, and as {@link #breach()}
+   * once the sampling is over. The sampled analysis is not interrupted.
+   */
+  ResourceSampler(@Nullable File csvFile, long intervalMillis, int maxHeapUsage, int maxGcTime, boolean failAfterThreshold,
+    ObjIntConsumer<String> log) throws IOException {
+    this.intervalMillis = intervalMillis;
+    this.maxHeapUsage = maxHeapUsage;
+    this.maxGcTime = maxGcTime;
+    this.log = log;
+    this.thresholdLevel = failAfterThreshold ? Project.MSG_ERR : Project.MSG_WARN;
+    this.previousGcTime = gcTime();
+    if (csvFile != null) {
+      Files.createDirectories(csvFile.getAbsoluteFile().getParentFile().toPath());
+      csv = Files.newBufferedWriter(csvFile.toPath(), StandardCharsets.UTF_8);
+      csv.write(CSV_HEADER);
+      csv.newLine();
+    } else {
+      csv = null;
+    }
+    this.thread = new Thread(this::run, "sonar-resource-sampler");
+    thread.setDaemon(true);
+  }
+
+  ResourceSampler start() {
+    thread.start();
+    return this;
+  }
+
+  private void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        Thread.sleep(intervalMillis);
+        sample();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // VisibleForTesting
+  synchronized void sample() {
+    long now = System.nanoTime();
+    MemoryUsage heap = memory.getHeapMemoryUsage();
+    long heapAfterGc = heapAfterGc();
+    long gcCount = collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(count -> count > 0).sum();
+    long gcTime = gcTime();
+    if (csv != null) {
+      try {
+        csv.write(TimeUnit.NANOSECONDS.toMillis(now - startNanos) + "," + heap.getUsed() + "," + heapAfterGc + "," + heap.getMax() + ","
+          + gcCount + "," + gcTime + "," + processCpuMillis() + "," + threads.getThreadCount());
+        csv.newLine();
+      } catch (IOException e) {
+        // the samples are a diagnostic, they must not fail the analysis
+      }
+    }
+    long intervalMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(now - previousSampleNanos));
+    checkHeap(heapAfterGc, heap.getMax());
+    checkGcTime((gcTime - previousGcTime) * 100 / intervalMs);
+    previousGcTime = gcTime;
+    previousSampleNanos = now;
+  }
+
+  // VisibleForTesting
+  void checkHeap(long heapAfterGc, long heapMax) {
+    if (maxHeapUsage > 0 && heapMax > 0 && !heapReported && heapAfterGc * 100 / heapMax >= maxHeapUsage) {
+      heapReported = true;
+      report("Heap usage after garbage collection reached " + (heapAfterGc * 100 / heapMax) + "% of the maximum heap size of "
+        + (heapMax / (1024 * 1024)) + " MB, above the threshold of " + maxHeapUsage + "%. Increase the maximum heap size of the JVM "
+        + "running the analysis.");
+    }
+  }
+
+  // VisibleForTesting
+  void checkGcTime(long gcPercent) {
+    if (maxGcTime > 0 && !gcReported && gcPercent >= maxGcTime) {
+      gcReported = true;
+      report("Garbage collections took " + gcPercent + "% of the time, above the threshold of " + maxGcTime + "%. Increase the maximum "
+        + "heap size of the JVM running the analysis.");
+    }
+  }
+
+  private void report(String message) {
+    if (breach == null && thresholdLevel == Project.MSG_ERR) {
+      breach = message;
+    }
+    log.accept(message, thresholdLevel);
+  }
+
+  private long heapAfterGc() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : pools) {
+      MemoryUsage afterGc = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+      if (afterGc != null) {
+        used += afterGc.getUsed();
+      }
+    }
+    return used;
+  }
+
+  private long gcTime() {
+    return collectors.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(time -> time > 0).sum();
+  }
+
+  /**
+   * @return -1 when the JVM doesn't provide the CPU time of the process
+   */
+  private long processCpuMillis() {
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      long nanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+      return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+    return -1;
+  }
+
+  /**
+   * @return the first crossed threshold when they fail the build after the analysis, or <code>null</code>
+   */
+  @CheckForNull
+  String breach() {
+    return breach;
+  }
+
+  /**
+   * Stops sampling, after a last sample.
+   */
+  @Override
+  public void close() {
+    thread.interrupt();
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sample();
+    if (csv != null) {
+      try {
+        csv.close();
+      } catch (IOException e) {
+        log.accept("Unable to write the resource samples: " + e.getMessage(), Project.MSG_WARN);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.sonarsource.scanner.api.LogOutput;
+
+/**
+ * Writes all the log messages of the analysis to a gzip-compressed file, whatever their level, so that the DEBUG and
+ * TRACE messages can be kept without going through the Ant loggers.
+ * <p>
+ * Once a file holds the given number of uncompressed bytes, it is renamed with the index 1, the previous files are
+ * shifted, the oldest ones are removed and a new file is started: <code>sonar.log.gz</code> becomes
+ * <code>sonar.log.1.gz</code>. The file of a previous analysis is rotated the same way when the analysis starts.
+ */
+class RotatingLogFile implements LogOutput, AutoCloseable {
+
+  private static final String GZIP_EXTENSION = ".gz";
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File file;
+  private final long maxSize;
+  private final int maxFiles;
+  @Nullable
+  private Writer writer;
+  private long size;
+  @Nullable
+  private IOException failure;
+
+  /**
+   * @param maxSize number of uncompressed bytes after which the file is rotated
+   * @param maxFiles number of rotated files kept in addition to the current one
+   */
+  RotatingLogFile(File file, long maxSize, int maxFiles) throws IOException {
+    this.file = file.getAbsoluteFile();
+    this.maxSize = maxSize;
+    this.maxFiles = maxFiles;
+    Files.createDirectories(this.file.getParentFile().toPath());
+    rotate();
+  }
+
+  @Override
+  public synchronized void log(String formattedMessage, Level level) {
+    if (failure != null) {
+      return;
+    }
+    try {
+      if (writer == null) {
+        writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE),
+          StandardCharsets.UTF_8), BUFFER_SIZE);
+      }
+      String line = Instant.now() + " " + level.name() + " " + formattedMessage + "\n";
+      writer.write(line);
+      // close enough to the number of bytes, without encoding the line twice
+      size += line.length();
+      if (size >= maxSize) {
+        writer.close();
+        writer = null;
+        rotate();
+      }
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  private void rotate() throws IOException {
+    size = 0;
+    if (!file.exists()) {
+      return;
+    }
+    Files.deleteIfExists(rotated(maxFiles).toPath());
+    for (int index = maxFiles - 1; index >= 1; index--) {
+      File from = rotated(index);
+      if (from.exists()) {
+        Files.move(from.toPath(), rotated(index + 1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    if (maxFiles > 0) {
+      Files.move(file.toPath(), rotated(1).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      Files.delete(file.toPath());
+    }
+  }
+
+  // VisibleForTesting
+  File rotated(int index) {
+    String name = file.getName();
+    String rotatedName = name.endsWith(GZIP_EXTENSION)
+      ? (name.substring(0, name.length() - GZIP_EXTENSION.length()) + "." + index + GZIP_EXTENSION)
+      : (name + "." + index);
+    return new File(file.getParentFile(), rotatedName);
+  }
+
+  /**
+   * @return the error which stopped the writing of the messages, if any
+   */
+  @CheckForNull
+  synchronized IOException failure() {
+    return failure;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (writer != null) {
+      try {
+        writer.close();
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+      writer = null;
+    }
+  }
+
+}
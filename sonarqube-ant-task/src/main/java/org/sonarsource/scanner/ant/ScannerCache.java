@@ -0,0 +1,344 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+
+/**
+ * Management of the user cache of the scanner, shared by all the builds of a host: <code>&lt;cache
+ * dir&gt;/&lt;hash&gt;/&lt;file&gt;</code>, plus a <code>_tmp</code> directory where the scanner downloads files before
+ * moving them to their final location.
+ * <p>
+ * The builds coordinate with a lock file in the cache directory, and the threads of a build with a lock in memory, since
+ * file locks are held by the whole JVM. The bootstrap of the engine waits for the lock, so that builds starting at the
+ * same time download the engine only once. The eviction gives up when the lock is held by another build.
+ */
+final class ScannerCache {
+
+  static final String USER_HOME_PROPERTY = "sonar.userHome";
+  static final String USER_HOME_ENV = "SONAR_USER_HOME";
+  private static final String LOCK_FILE = ".sonar-ant.lock";
+  private static final String TEMP_DIR = "_tmp";
+  private static final Map<Path, ReentrantLock> JVM_LOCKS = new ConcurrentHashMap<>();
+  /**
+   * Links to the files open by the JVM, on Linux only
+   */
+  private static final Path OPEN_FILES = Paths.get("/proc/self/fd");
+  private static final long RECORD_INTERVAL_MILLIS = 1000;
+  /**
+   * Entries used more recently than this are never evicted, since the builds that don't lock the cache may still be
+   * using them
+   */
+  static final long RECENT_USE_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+  private ScannerCache() {
+    // only static methods
+  }
+
+  /**
+   * Same resolution as the scanner: <code>sonar.userHome</code>, <code>SONAR_USER_HOME</code>, then
+   * <code>~/.sonar</code>.
+   */
+  static File cacheDir(Map<String, String> properties, Map<String, String> env) {
+    String userHome = properties.get(USER_HOME_PROPERTY);
+    if (userHome == null || userHome.trim().isEmpty()) {
+      userHome = env.get(USER_HOME_ENV);
+    }
+    if (userHome == null || userHome.trim().isEmpty()) {
+      userHome = new File(System.getProperty("user.home"), ".sonar").getPath();
+    }
+    return new File(userHome.trim(), "cache").getAbsoluteFile();
+  }
+
+  /**
+   * Runs the given action while holding the lock of the cache, waiting for it if needed.
+   */
+  static void locked(File cacheDir, Runnable action) throws IOException {
+    Path dir = cacheDir.toPath().toAbsolutePath().normalize();
+    ReentrantLock jvmLock = JVM_LOCKS.computeIfAbsent(dir, d -> new ReentrantLock());
+    jvmLock.lock();
+    try (FileChannel channel = openLockFile(dir); FileLock lock = channel.lock()) {
+      action.run();
+    } finally {
+      jvmLock.unlock();
+    }
+  }
+
+  /**
+   * Runs the given action, like an analysis, while recording the use of the entries whose files it opens, as the
+   * modification date of the entries. The access dates of the file system can't be relied on, since file systems are
+   * usually mounted with <code>noatime</code> or <code>relatime</code>. The open files of the JVM are only known on
+   * Linux. Elsewhere, the dates of the file system are the only record of the use of the entries.
+   */
+  static void recordingUse(File cacheDir, Runnable action) {
+    if (!Files.isDirectory(OPEN_FILES)) {
+      action.run();
+      return;
+    }
+    Set<Path> recorded = ConcurrentHashMap.newKeySet();
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "sonar-cache-use");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(() -> recordOpenEntries(cacheDir, recorded), 0, RECORD_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    try {
+      action.run();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * @param recorded entries already recorded, updated with the ones recorded by this call
+   */
+  // VisibleForTesting
+  static void recordOpenEntries(File cacheDir, Set<Path> recorded) {
+    try {
+      // the links to the open files are real paths
+      Path dir = cacheDir.toPath().toRealPath();
+      try (DirectoryStream<Path> links = Files.newDirectoryStream(OPEN_FILES)) {
+        for (Path link : links) {
+          Path entry = entryOf(dir, link);
+          if (entry != null && recorded.add(entry)) {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+          }
+        }
+      }
+    } catch (IOException | DirectoryIteratorException e) {
+      // no cache yet, or entry removed meanwhile: the use is recorded by the next call
+    }
+  }
+
+  @CheckForNull
+  private static Path entryOf(Path cacheDir, Path link) {
+    Path file;
+    try {
+      file = Files.readSymbolicLink(link);
+    } catch (IOException e) {
+      // closed meanwhile
+      return null;
+    }
+    if (!file.startsWith(cacheDir) || file.getNameCount() <= cacheDir.getNameCount() + 1) {
+      return null;
+    }
+    Path entry = cacheDir.resolve(file.getName(cacheDir.getNameCount()));
+    return isEntry(entry.getFileName().toString()) ? entry : null;
+  }
+
+  private static boolean isEntry(String name) {
+    return !name.startsWith("_") && !name.startsWith(".");
+  }
+
+  /**
+   * Removes the least recently used entries until the cache is not larger than the given size. The last use of an entry
+   * is the last access or modification of the entry or of its files, as recorded by the file system or by
+   * {@link #recordingUse(File, Runnable)}. Entries used since the given date or within {@link #RECENT_USE_MILLIS} are
+   * kept, as well as the files being downloaded. Entries are first moved to the temporary directory, so that other
+   * builds see either a complete entry or no entry at all.
+   *
+   * @return the number of bytes freed, or <code>null</code> if the cache is locked by another build
+   */
+  @CheckForNull
+  static Long evict(File cacheDir, long maxSize, long keepUsedSince) throws IOException {
+    Path dir = cacheDir.toPath().toAbsolutePath().normalize();
+    if (!Files.isDirectory(dir)) {
+      return 0L;
+    }
+    ReentrantLock jvmLock = JVM_LOCKS.computeIfAbsent(dir, d -> new ReentrantLock());
+    if (!jvmLock.tryLock()) {
+      return null;
+    }
+    try (FileChannel channel = openLockFile(dir); FileLock lock = channel.tryLock()) {
+      if (lock == null) {
+        return null;
+      }
+      return evictLocked(dir, maxSize, Math.min(keepUsedSince, System.currentTimeMillis() - RECENT_USE_MILLIS));
+    } finally {
+      jvmLock.unlock();
+    }
+  }
+
+  private static long evictLocked(Path dir, long maxSize, long keepUsedSince) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    long totalSize = 0;
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+      for (Path child : children) {
+        String name = child.getFileName().toString();
+        Entry entry = Files.isDirectory(child) && isEntry(name) ? Entry.of(child) : null;
+        if (entry != null) {
+          entries.add(entry);
+          totalSize += entry.size;
+        }
+      }
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause();
+    }
+    entries.sort(Comparator.comparingLong(e -> e.lastUsed));
+    long freed = 0;
+    for (Entry entry : entries) {
+      if (totalSize - freed <= maxSize || entry.lastUsed >= keepUsedSince) {
+        break;
+      }
+      if (remove(dir, entry.dir)) {
+        freed += entry.size;
+      }
+    }
+    return freed;
+  }
+
+  private static boolean remove(Path cacheDir, Path entry) {
+    try {
+      Path tempDir = Files.createDirectories(cacheDir.resolve(TEMP_DIR));
+      Path removed = tempDir.resolve("evicted-" + UUID.randomUUID());
+      Files.move(entry, removed);
+      deleteTree(removed);
+      return true;
+    } catch (IOException e) {
+      // in use, like on Windows, or removed by someone else
+      return false;
+    }
+  }
+
+  private static void deleteTree(Path root) throws IOException {
+    Files.walkFileTree(root, new VanishingFileVisitor() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.deleteIfExists(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, @Nullable IOException e) throws IOException {
+        if (e != null && !(e instanceof NoSuchFileException)) {
+          throw e;
+        }
+        Files.deleteIfExists(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Skips the files removed while the tree is walked, like the entries evicted by another build or the temporary files
+   * of the scanner.
+   */
+  private static class VanishingFileVisitor extends SimpleFileVisitor<Path> {
+    @Override
+    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+      if (e instanceof NoSuchFileException) {
+        return FileVisitResult.CONTINUE;
+      }
+      throw e;
+    }
+  }
+
+  private static FileChannel openLockFile(Path dir) throws IOException {
+    Files.createDirectories(dir);
+    return FileChannel.open(dir.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+  }
+
+  /**
+   * @param size number of bytes, optionally followed by <code>k</code>, <code>m</code> or <code>g</code>
+   */
+  static long parseSize(String size) {
+    String value = size.trim().toLowerCase(Locale.ENGLISH);
+    long unit = 1;
+    if (value.endsWith("k") || value.endsWith("m") || value.endsWith("g")) {
+      unit = 1L << (10 * ("kmg".indexOf(value.charAt(value.length() - 1)) + 1));
+      value = value.substring(0, value.length() - 1).trim();
+    }
+    long number;
+    try {
+      number = Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid size: " + size, e);
+    }
+    if (number < 0) {
+      throw new IllegalArgumentException("Invalid size: " + size);
+    }
+    return number * unit;
+  }
+
+  private static class Entry {
+    private final Path dir;
+    private final long size;
+    private final long lastUsed;
+
+    private Entry(Path dir, long size, long lastUsed) {
+      this.dir = dir;
+      this.size = size;
+      this.lastUsed = lastUsed;
+    }
+
+    /**
+     * @return <code>null</code> if the entry was removed meanwhile
+     */
+    @CheckForNull
+    static Entry of(Path dir) throws IOException {
+      long[] sizeAndLastUsed = new long[2];
+      try {
+        sizeAndLastUsed[1] = Files.readAttributes(dir, BasicFileAttributes.class).lastModifiedTime().toMillis();
+      } catch (NoSuchFileException e) {
+        return null;
+      }
+      Files.walkFileTree(dir, new VanishingFileVisitor() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+          if (attributes.isRegularFile()) {
+            sizeAndLastUsed[0] += attributes.size();
+            sizeAndLastUsed[1] = Math.max(sizeAndLastUsed[1], Math.max(attributes.lastAccessTime().toMillis(), attributes.lastModifiedTime().toMillis()));
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+      return new Entry(dir, sizeAndLastUsed[0], sizeAndLastUsed[1]);
+    }
+  }
+
+}
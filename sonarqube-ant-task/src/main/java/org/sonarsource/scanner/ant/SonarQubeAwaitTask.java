@@ -0,0 +1,65 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+
+/**
+ * Joins an analysis started by <code>&lt;sonar:sonar async="true"&gt;</code>, passes its log messages to Ant and fails
+ * the build if the analysis failed:
+ * <pre>
+ * &lt;sonar:sonar async="true"/&gt;
+ * &lt;antcall target="package"/&gt;
+ * &lt;sonar:await timeout="600"/&gt;
+ * </pre>
+ */
+public class SonarQubeAwaitTask extends Task {
+
+  private String id = BackgroundAnalysis.DEFAULT_ID;
+  private long timeout;
+
+  /**
+   * @param id <code>asyncId</code> of the analysis. Default is <code>sonar.analysis</code>.
+   */
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  /**
+   * @param timeout maximum number of seconds to wait for the end of the analysis. Default is 0, to wait as long as needed.
+   */
+  public void setTimeout(long timeout) {
+    if (timeout < 0) {
+      throw new BuildException("The timeout must not be negative");
+    }
+    this.timeout = timeout;
+  }
+
+  @Override
+  public void execute() {
+    Object analysis = getProject().getReference(id);
+    if (!(analysis instanceof BackgroundAnalysis)) {
+      throw new BuildException("No SonarQube analysis started in the background with id '" + id + "'");
+    }
+    ((BackgroundAnalysis) analysis).join(timeout);
+  }
+
+}
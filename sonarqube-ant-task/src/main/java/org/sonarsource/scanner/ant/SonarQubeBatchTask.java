@@ -0,0 +1,370 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.Path;
+import org.apache.tools.ant.types.PropertySet;
+
+/**
+ * Runs the analysis of several modules on a bounded pool of worker threads:
+ * <pre>
+ * &lt;sonar:batch threads="4" failfast="false" incremental="true"&gt;
+ *   &lt;module name="one" basedir="one"&gt;
+ *     &lt;property name="sonar.projectKey" value="org.example:one"/&gt;
+ *   &lt;/module&gt;
+ *   ...
+ * &lt;/sonar:batch&gt;
+ * </pre>
+ * Each module is analysed with the properties that <code>&lt;sonar:sonar&gt;</code> would use, overridden by the
+ * properties nested in the module, and runs the same steps as <code>&lt;sonar:sonar&gt;</code>, which
+ * {@link AnalysisPipeline} implements. The attributes of <code>&lt;sonar:sonar&gt;</code> apply to every module, except
+ * the ones that can't be shared by modules analysed at the same time: the nested paths, which are set as module
+ * properties instead, <code>manifest</code>, <code>logFile</code>, <code>timingReport</code>, the resource sampling and
+ * <code>async</code>.
+ */
+public class SonarQubeBatchTask extends SonarQubeTask {
+
+  private final List<Module> modules = new ArrayList<>();
+  private int threads = 1;
+  private boolean failFast = true;
+
+  public void setThreads(int threads) {
+    if (threads < 1) {
+      throw new BuildException("The number of threads must be greater than zero");
+    }
+    this.threads = threads;
+  }
+
+  /**
+   * @param failFast <code>true</code> (default) to stop scheduling new analyses as soon as one of them fails,
+   * <code>false</code> to analyse all the modules and report all the failures at the end
+   */
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  public Module createModule() {
+    Module module = new Module();
+    modules.add(module);
+    return module;
+  }
+
+  @Override
+  public void setAsync(boolean async) {
+    if (async) {
+      throw notShared("async");
+    }
+  }
+
+  @Override
+  public void setManifest(File manifest) {
+    throw notShared("manifest");
+  }
+
+  @Override
+  public void setLogFile(File logFile) {
+    throw notShared("logFile");
+  }
+
+  @Override
+  public void setTimingReport(File timingReport) {
+    throw notShared("timingReport");
+  }
+
+  @Override
+  public void setResourceSamples(File resourceSamples) {
+    throw notShared("resourceSamples");
+  }
+
+  @Override
+  public void setMaxHeapUsage(int maxHeapUsage) {
+    throw notShared("maxHeapUsage");
+  }
+
+  @Override
+  public void setMaxGcTime(int maxGcTime) {
+    throw notShared("maxGcTime");
+  }
+
+  @Override
+  public Path createSources() {
+    throw nestedPath("sources");
+  }
+
+  @Override
+  public Path createTests() {
+    throw nestedPath("tests");
+  }
+
+  @Override
+  public Path createBinaries() {
+    throw nestedPath("binaries");
+  }
+
+  @Override
+  public Path createLibraries() {
+    throw nestedPath("libraries");
+  }
+
+  private static BuildException notShared(String attribute) {
+    return new BuildException("<sonar:batch> doesn't support '" + attribute + "', which can't be shared by the modules analysed at the same time");
+  }
+
+  private static BuildException nestedPath(String element) {
+    return new BuildException("<sonar:batch> doesn't support nested <" + element + ">, set the paths as properties of each module");
+  }
+
+  @Override
+  public void execute() {
+    if (modules.isEmpty()) {
+      log("No module to analyse", Project.MSG_WARN);
+      return;
+    }
+    Map<String, Map<String, String>> propertiesByModule = collectModuleProperties();
+    if (propertiesByModule.isEmpty()) {
+      log("SonarQube Scanner analysis skipped");
+      return;
+    }
+    checkSharedFiles(propertiesByModule);
+    Map<String, AnalysisPipeline> pipelineByModule = new LinkedHashMap<>();
+    propertiesByModule.forEach((name, properties) -> {
+      AnalysisPipeline pipeline = newPipeline(name);
+      pipeline.prepare(properties);
+      pipelineByModule.put(name, pipeline);
+    });
+
+    int poolSize = Math.min(threads, propertiesByModule.size());
+    log("Analysing " + propertiesByModule.size() + " module(s) with " + poolSize + " thread(s)");
+    ExecutorService executor = Executors.newFixedThreadPool(poolSize, new WorkerThreadFactory());
+    try {
+      runAnalyses(executor, propertiesByModule, pipelineByModule);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Map<String, Map<String, String>> collectModuleProperties() {
+    Map<String, String> sharedProps = null;
+    Map<String, Map<String, String>> propertiesByModule = new LinkedHashMap<>();
+    for (Module module : modules) {
+      String name = module.getName();
+      if (propertiesByModule.containsKey(name)) {
+        throw new BuildException("Module '" + name + "' is declared more than once");
+      }
+      if (sharedProps == null) {
+        sharedProps = collectProperties();
+      }
+      Map<String, String> moduleProps = new HashMap<>(sharedProps);
+      module.putProperties(moduleProps);
+      if (SonarQubeTask.isSkipped(moduleProps)) {
+        log("SonarQube Scanner analysis of module '" + name + "' skipped");
+      } else {
+        propertiesByModule.put(name, moduleProps);
+      }
+    }
+    return propertiesByModule;
+  }
+
+  /**
+   * Analyses run in the same JVM must not share a working directory, otherwise they would delete each other's files,
+   * nor a manifest in incremental mode.
+   */
+  private void checkSharedFiles(Map<String, Map<String, String>> propertiesByModule) {
+    Map<File, String> moduleByWorkDir = new HashMap<>();
+    Map<File, String> moduleByManifest = new HashMap<>();
+    for (Map.Entry<String, Map<String, String>> entry : propertiesByModule.entrySet()) {
+      File workDir = SonarQubeTask.workingDirectory(entry.getValue()).getAbsoluteFile();
+      checkNotShared(moduleByWorkDir, workDir, entry.getKey(), "working directory",
+        "'basedir' or '" + SonarQubeTask.WORKING_DIRECTORY_PROPERTY + "'");
+      if (isIncremental()) {
+        File manifest = AnalysisPipeline.manifestFile(this, entry.getValue()).getAbsoluteFile();
+        checkNotShared(moduleByManifest, manifest, entry.getKey(), "manifest", "'basedir'");
+      }
+    }
+  }
+
+  private static void checkNotShared(Map<File, String> moduleByFile, File file, String module, String what, String settings) {
+    String other = moduleByFile.put(file, module);
+    if (other != null) {
+      throw new BuildException("Modules '" + other + "' and '" + module + "' use the same " + what + " " + file
+        + ". Set a different " + settings + " on each module.");
+    }
+  }
+
+  /**
+   * The analyses run on the worker threads, and their timings are published by the build thread once they are over.
+   */
+  private void runAnalyses(ExecutorService executor, Map<String, Map<String, String>> propertiesByModule,
+    Map<String, AnalysisPipeline> pipelineByModule) {
+    CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+    Map<Future<Void>, String> moduleByFuture = new HashMap<>();
+    for (Map.Entry<String, Map<String, String>> entry : propertiesByModule.entrySet()) {
+      String name = entry.getKey();
+      AnalysisPipeline pipeline = pipelineByModule.get(name);
+      Map<String, String> props = entry.getValue();
+      moduleByFuture.put(completionService.submit(() -> analyse(name, pipeline, props), null), name);
+    }
+
+    Map<String, Throwable> failures = new LinkedHashMap<>();
+    for (int i = 0; i < moduleByFuture.size(); i++) {
+      Future<Void> future = take(completionService);
+      String name = moduleByFuture.get(future);
+      try {
+        future.get();
+        log("Analysis of module '" + name + "' done");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new BuildException("Interrupted while waiting for the analysis of module '" + name + "'", e);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (failFast) {
+          moduleByFuture.keySet().forEach(f -> f.cancel(false));
+          throw cause instanceof BuildException ? (BuildException) cause : new BuildException(cause);
+        }
+        log(cause.getMessage(), Project.MSG_ERR);
+        failures.put(name, cause);
+      } finally {
+        pipelineByModule.get(name).publishTimings();
+      }
+    }
+    if (!failures.isEmpty()) {
+      BuildException exception = new BuildException("Analysis failed for " + failures.size() + " of " + moduleByFuture.size()
+        + " modules: " + String.join(", ", failures.keySet()));
+      failures.values().forEach(exception::addSuppressed);
+      throw exception;
+    }
+  }
+
+  private static Future<Void> take(CompletionService<Void> completionService) {
+    try {
+      return completionService.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BuildException("Interrupted while waiting for the analysis of the modules", e);
+    }
+  }
+
+  private static void analyse(String moduleName, AnalysisPipeline pipeline, Map<String, String> properties) {
+    try {
+      pipeline.run(properties);
+    } catch (RuntimeException e) {
+      throw new BuildException("Analysis of module '" + moduleName + "' failed: " + e.getMessage(), e);
+    }
+  }
+
+  private static class WorkerThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "sonar-batch-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  public static class Module {
+    private String name;
+    @Nullable
+    private File baseDir;
+    private final List<Property> properties = new ArrayList<>();
+    private final List<PropertySet> propertySets = new ArrayList<>();
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    String getName() {
+      if (name == null || name.isEmpty()) {
+        throw new BuildException("The 'name' attribute of a module is mandatory");
+      }
+      return name;
+    }
+
+    /**
+     * @param baseDir the base directory of the module, passed as <code>sonar.projectBaseDir</code>
+     */
+    public void setBasedir(File baseDir) {
+      this.baseDir = baseDir;
+    }
+
+    public void addConfiguredProperty(Property property) {
+      properties.add(property);
+    }
+
+    public void addPropertyset(PropertySet propertySet) {
+      propertySets.add(propertySet);
+    }
+
+    void putProperties(Map<String, String> dest) {
+      if (baseDir != null) {
+        dest.put(SonarQubeTask.PROJECT_BASEDIR_PROPERTY, baseDir.getAbsolutePath());
+      }
+      for (PropertySet propertySet : propertySets) {
+        SonarQubeTask.putAll(propertySet.getProperties(), dest);
+      }
+      for (Property property : properties) {
+        dest.put(property.getName(), property.getValue());
+      }
+    }
+  }
+
+  public static class Property {
+    private String name;
+    private String value;
+
+    public void setName(String name) {
+      this.name = name;
+    }
+
+    public void setValue(String value) {
+      this.value = value;
+    }
+
+    String getName() {
+      if (name == null || value == null) {
+        throw new BuildException("The 'name' and 'value' attributes of a module property are mandatory");
+      }
+      return name;
+    }
+
+    String getValue() {
+      return value;
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.util.Map;
+import org.apache.tools.ant.Task;
+
+/**
+ * Starts the scanner engine in the background, so that it is downloaded and loaded while the build compiles and tests
+ * the project, and used by the next <code>&lt;sonar:sonar&gt;</code>:
+ * <pre>
+ * &lt;target name="init"&gt;
+ *   &lt;sonar:prepare/&gt;
+ * &lt;/target&gt;
+ * </pre>
+ * The engine is started with the properties known when the task runs, so the server and the credentials must already
+ * be set. <code>&lt;sonar:sonar&gt;</code> waits for the engine if it is not started yet, and starts its own one if the
+ * server or the credentials changed meanwhile. The analyses run in a forked JVM or in a daemon don't use it.
+ */
+public class SonarQubePrepareTask extends Task {
+
+  private String id = PreparedEngine.DEFAULT_ID;
+
+  /**
+   * @param id <code>engineId</code> of the <code>&lt;sonar:sonar&gt;</code> using the engine. Default is
+   * <code>sonar.engine</code>.
+   */
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  @Override
+  public void execute() {
+    SonarQubeTask task = new SonarQubeTask();
+    task.bindToOwner(this);
+    Map<String, String> properties = task.collectProperties();
+    if (SonarQubeTask.isSkipped(properties)) {
+      log("SonarQube Scanner engine preparation skipped");
+      return;
+    }
+    Object previous = getProject().getReference(id);
+    if (previous instanceof PreparedEngine) {
+      ((PreparedEngine) previous).release();
+    }
+    PreparedEngine engine = new PreparedEngine(id, properties, ScannerCache.cacheDir(properties, task.getEnv()));
+    getProject().addReference(id, engine);
+    engine.start(getProject());
+    log("Starting the SonarQube Scanner engine in the background");
+  }
+
+}
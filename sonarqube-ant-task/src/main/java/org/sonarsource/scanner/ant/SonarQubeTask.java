@@ -19,25 +19,71 @@
  */
 package org.sonarsource.scanner.ant;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Main;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.Task;
-import org.sonarsource.scanner.api.EmbeddedScanner;
+import org.apache.tools.ant.types.Commandline;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.apache.tools.ant.types.EnumeratedAttribute;
+import org.apache.tools.ant.types.Path;
 import org.sonarsource.scanner.api.LogOutput;
 import org.sonarsource.scanner.api.ScanProperties;
 import org.sonarsource.scanner.api.Utils;
 
-import static java.util.stream.Collectors.toMap;
+import static java.util.stream.Collectors.toList;
 
 public class SonarQubeTask extends Task {
 
   class LogOutputImplementation implements LogOutput {
+    private final boolean[] loggable = new boolean[Level.values().length];
+    @Nullable
+    private final String moduleName;
+
+    LogOutputImplementation() {
+      this(null);
+    }
+
+    /**
+     * @param moduleName name of the module analysed by {@link SonarQubeBatchTask}, prefixed to the messages
+     */
+    LogOutputImplementation(@Nullable String moduleName) {
+      this.moduleName = moduleName;
+      int effectiveLevel = getProject() == null ? Project.MSG_DEBUG : SonarQubeTaskUtils.getEffectiveLogLevel(getProject());
+      for (Level level : Level.values()) {
+        loggable[level.ordinal()] = toAntLevel(level) <= effectiveLevel && level.compareTo(consoleLevel) <= 0;
+      }
+    }
+
+    /**
+     * @return <code>false</code> if none of the Ant listeners outputs messages of this level
+     */
+    boolean isLoggable(Level level) {
+      return loggable[level.ordinal()];
+    }
+
     @Override
     public void log(String formattedMessage, Level level) {
-      logWithTaskLogger(formattedMessage, toAntLevel(level));
+      if (!isLoggable(level)) {
+        return;
+      }
+      String message = moduleName == null ? formattedMessage : ("[" + moduleName + "] " + formattedMessage);
+      logWithTaskLogger(message, toAntLevel(level));
     }
 
     // Visible for mocking
@@ -63,35 +109,653 @@ public class SonarQubeTask extends Task {
     }
   }
 
-  private static final String PROJECT_BASEDIR_PROPERTY = "sonar.projectBaseDir";
-  private static final String VERBOSE_PROPERTY = "sonar.verbose";
+  static final String PROJECT_BASEDIR_PROPERTY = "sonar.projectBaseDir";
+  static final String VERBOSE_PROPERTY = "sonar.verbose";
+  static final String WORKING_DIRECTORY_PROPERTY = "sonar.working.directory";
+  private static final String DEFAULT_WORKING_DIRECTORY = ".scannerwork";
+  private static final int DEFAULT_LOG_BUFFER_SIZE = 8192;
+  private static final long DEFAULT_SAMPLE_INTERVAL = 1000;
+  private static final long DEFAULT_LOG_FILE_MAX_SIZE = 100L * 1024 * 1024;
+  private static final int DEFAULT_LOG_FILE_COUNT = 5;
+  private static final long DEFAULT_DAEMON_IDLE_TIMEOUT = TimeUnit.HOURS.toSeconds(3);
+  private static final String ALL_PROPERTIES = "*";
+  private static final String SCANNER_PARAMS_ENV = "SONARQUBE_SCANNER_PARAMS";
+  private static final String ORIGIN_BASEDIR = "project base directory";
+  private static final String ORIGIN_LOG_LEVEL = "Ant log level";
+  private static final String ORIGIN_ENVIRONMENT = "environment";
+  private static final String ORIGIN_ANT = "Ant properties";
+
+  private boolean incremental;
+  @Nullable
+  private File manifest;
+  private List<String> propertyPrefixes = Collections.emptyList();
+  private boolean asyncLog;
+  private int logBufferSize = DEFAULT_LOG_BUFFER_SIZE;
+  private AsyncLogOutput.OverflowPolicy logOverflow = AsyncLogOutput.OverflowPolicy.BLOCK;
+  @Nullable
+  private Path sources;
+  @Nullable
+  private Path tests;
+  @Nullable
+  private Path binaries;
+  @Nullable
+  private Path libraries;
+  private boolean fork;
+  private final CommandlineJava javaCommand = new CommandlineJava();
+  @Nullable
+  private File timingReport;
+  private long cacheMaxSize = -1;
+  private boolean keepReport;
+  private boolean daemon;
+  private boolean async;
+  private String asyncId = BackgroundAnalysis.DEFAULT_ID;
+  @Nullable
+  private volatile BackgroundAnalysis backgroundAnalysis;
+  @Nullable
+  private File resourceSamples;
+  private long sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+  private int maxHeapUsage;
+  private int maxGcTime;
+  private boolean failAfterResourceThreshold;
+  private LogOutput.Level consoleLevel = LogOutput.Level.TRACE;
+  @Nullable
+  private File logFile;
+  private LogOutput.Level logFileLevel = LogOutput.Level.DEBUG;
+  private long logFileMaxSize = DEFAULT_LOG_FILE_MAX_SIZE;
+  private int logFileCount = DEFAULT_LOG_FILE_COUNT;
+  private String engineId = PreparedEngine.DEFAULT_ID;
+  private long daemonIdleTimeout = DEFAULT_DAEMON_IDLE_TIMEOUT;
+  private boolean classDataSharing;
+
+  /**
+   * Values of the <code>logOverflow</code> attribute.
+   */
+  public static class LogOverflow extends EnumeratedAttribute {
+    @Override
+    public String[] getValues() {
+      return new String[] {"block", "drop-debug", "drop-oldest"};
+    }
+
+    AsyncLogOutput.OverflowPolicy getPolicy() {
+      return AsyncLogOutput.OverflowPolicy.values()[getIndex()];
+    }
+  }
+
+  /**
+   * Values of the <code>consoleLevel</code> and <code>logFileLevel</code> attributes.
+   */
+  public static class LogLevel extends EnumeratedAttribute {
+    @Override
+    public String[] getValues() {
+      return new String[] {"error", "warn", "info", "debug", "trace"};
+    }
+
+    LogOutput.Level getLevel() {
+      return LogOutput.Level.values()[getIndex()];
+    }
+  }
+
+  /**
+   * @param incremental <code>true</code> to skip the analysis when neither the analysed files, nor the analysis properties,
+   * nor the version of the task changed since the previous successful analysis
+   */
+  public void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+  }
+
+  /**
+   * @param manifest file where the fingerprints of the analysed files are kept between two incremental analyses.
+   * Default is <code>.sonar-ant/manifest.properties</code> in the project base directory.
+   */
+  public void setManifest(File manifest) {
+    this.manifest = manifest;
+  }
+
+  /**
+   * @param propertyPrefixes comma-separated prefixes of the Ant properties to pass to the scanner in addition to the
+   * <code>sonar.*</code> ones, or <code>*</code> to pass all the Ant properties
+   */
+  public void setPropertyPrefixes(String propertyPrefixes) {
+    this.propertyPrefixes = Arrays.stream(propertyPrefixes.split(","))
+      .map(String::trim)
+      .filter(prefix -> !prefix.isEmpty())
+      .collect(toList());
+  }
+
+  /**
+   * @param asyncLog <code>true</code> to pass the log messages of the analysis to Ant from a background thread, so that
+   * the analysis doesn't wait for the Ant loggers
+   */
+  public void setAsyncLog(boolean asyncLog) {
+    this.asyncLog = asyncLog;
+  }
+
+  /**
+   * @param logBufferSize maximum number of log messages waiting to be passed to Ant when <code>asyncLog</code> is enabled
+   */
+  public void setLogBufferSize(int logBufferSize) {
+    if (logBufferSize < 1) {
+      throw new BuildException("The log buffer size must be greater than zero");
+    }
+    this.logBufferSize = logBufferSize;
+  }
+
+  /**
+   * @param logOverflow what to do when the log buffer is full: <code>block</code> (default) the analysis until there is
+   * room, <code>drop-debug</code> messages or <code>drop-oldest</code> messages. ERROR messages are never dropped.
+   */
+  public void setLogOverflow(LogOverflow logOverflow) {
+    this.logOverflow = logOverflow.getPolicy();
+  }
+
+  /**
+   * @param fork <code>true</code> to run the analysis in a separate JVM
+   */
+  public void setFork(boolean fork) {
+    this.fork = fork;
+  }
+
+  /**
+   * @param async <code>true</code> to run the analysis in the background and let the build go on until
+   * <code>&lt;sonar:await&gt;</code> joins it. The log messages of the analysis are passed to Ant when it is joined.
+   */
+  public void setAsync(boolean async) {
+    this.async = async;
+  }
+
+  /**
+   * @param asyncId identifier of the background analysis, to pass to <code>&lt;sonar:await&gt;</code>. Default is
+   * <code>sonar.analysis</code>.
+   */
+  public void setAsyncId(String asyncId) {
+    this.asyncId = asyncId;
+  }
+
+  /**
+   * @param engineId identifier of the engine started by <code>&lt;sonar:prepare&gt;</code> to use, if any. Default is
+   * <code>sonar.engine</code>.
+   */
+  public void setEngineId(String engineId) {
+    this.engineId = engineId;
+  }
+
+  /**
+   * @param consoleLevel most detailed level of the messages of the analysis passed to Ant, whatever the level of the Ant
+   * loggers. Default is <code>trace</code>, to let the Ant loggers decide.
+   */
+  public void setConsoleLevel(LogLevel consoleLevel) {
+    this.consoleLevel = consoleLevel.getLevel();
+  }
+
+  /**
+   * @param logFile gzip-compressed file where all the messages of the analysis are written, whatever
+   * <code>consoleLevel</code> and the level of the Ant loggers
+   */
+  public void setLogFile(File logFile) {
+    this.logFile = logFile;
+  }
+
+  /**
+   * @param logFileLevel level of the analysis when <code>logFile</code> is set and <code>sonar.log.level</code> isn't:
+   * <code>info</code>, <code>debug</code> (default) or <code>trace</code>
+   */
+  public void setLogFileLevel(LogLevel logFileLevel) {
+    if (logFileLevel.getLevel().compareTo(LogOutput.Level.INFO) < 0) {
+      throw new BuildException("The level of the log file must be info, debug or trace");
+    }
+    this.logFileLevel = logFileLevel.getLevel();
+  }
+
+  /**
+   * @param logFileMaxSize uncompressed size after which the log file is rotated, like <code>100m</code> (default)
+   */
+  public void setLogFileMaxSize(String logFileMaxSize) {
+    try {
+      this.logFileMaxSize = ScannerCache.parseSize(logFileMaxSize);
+    } catch (IllegalArgumentException e) {
+      throw new BuildException("Invalid log file size '" + logFileMaxSize + "', expected a number of bytes optionally followed by k, m or g", e);
+    }
+  }
+
+  /**
+   * @param logFileCount number of rotated log files kept in addition to the current one. Default is 5.
+   */
+  public void setLogFileCount(int logFileCount) {
+    if (logFileCount < 0) {
+      throw new BuildException("The number of log files must not be negative");
+    }
+    this.logFileCount = logFileCount;
+  }
+
+  /**
+   * @param resourceSamples CSV file where the heap usage, the garbage collections, the CPU time and the number of
+   * threads of the JVM are written at a fixed interval during the analysis
+   */
+  public void setResourceSamples(File resourceSamples) {
+    this.resourceSamples = resourceSamples;
+  }
+
+  /**
+   * @param sampleInterval number of milliseconds between two resource samples. Default is 1000.
+   */
+  public void setSampleInterval(long sampleInterval) {
+    if (sampleInterval < 1) {
+      throw new BuildException("The sample interval must be greater than zero");
+    }
+    this.sampleInterval = sampleInterval;
+  }
+
+  /**
+   * @param maxHeapUsage percentage of the maximum heap size still used after a garbage collection above which the
+   * analysis is reported as short of memory
+   */
+  public void setMaxHeapUsage(int maxHeapUsage) {
+    this.maxHeapUsage = checkPercentage(maxHeapUsage, "heap usage");
+  }
+
+  /**
+   * @param maxGcTime percentage of the time spent in garbage collections above which the analysis is reported as short
+   * of memory
+   */
+  public void setMaxGcTime(int maxGcTime) {
+    this.maxGcTime = checkPercentage(maxGcTime, "GC time");
+  }
+
+  private static int checkPercentage(int value, String name) {
+    if (value < 0 || value > 100) {
+      throw new BuildException("The maximum " + name + " must be a percentage between 0 and 100");
+    }
+    return value;
+  }
+
+  /**
+   * @param failAfterResourceThreshold <code>true</code> to fail the build once the analysis is over when
+   * <code>maxHeapUsage</code> or <code>maxGcTime</code> was crossed, instead of only logging a warning. The analysis is
+   * not interrupted, so its report is still submitted.
+   */
+  public void setFailAfterResourceThreshold(boolean failAfterResourceThreshold) {
+    this.failAfterResourceThreshold = failAfterResourceThreshold;
+  }
+
+  /**
+   * @param daemon <code>true</code> to run the analysis in a resident JVM shared by the builds of the host, which is
+   * started with the same settings as the forked JVM if needed. When the daemon is busy, the analysis is forked.
+   */
+  public void setDaemon(boolean daemon) {
+    this.daemon = daemon;
+  }
+
+  /**
+   * @param daemonIdleTimeout number of seconds after which a daemon without analysis stops. Default is 3 hours.
+   */
+  public void setDaemonIdleTimeout(long daemonIdleTimeout) {
+    if (daemonIdleTimeout < 0) {
+      throw new BuildException("The idle timeout of the daemon must not be negative");
+    }
+    this.daemonIdleTimeout = daemonIdleTimeout;
+  }
+
+  /**
+   * @param classDataSharing <code>true</code> to keep the classes loaded by the forked JVM in a class data sharing
+   * archive, used by the next forked JVMs and daemons to start faster. Requires Java 13 or later to run the analysis.
+   */
+  public void setClassDataSharing(boolean classDataSharing) {
+    this.classDataSharing = classDataSharing;
+  }
+
+  /**
+   * @param jvm command used to start the forked JVM. Default is the <code>java</code> executable of the JVM running Ant.
+   */
+  public void setJvm(String jvm) {
+    javaCommand.setVm(jvm);
+  }
+
+  /**
+   * @param maxmemory maximum heap size of the forked JVM, like <code>2g</code>
+   */
+  public void setMaxmemory(String maxmemory) {
+    javaCommand.setMaxmemory(maxmemory);
+  }
+
+  /**
+   * @param timingReport JSON file where the durations of the phases of the task and the number of log messages are written
+   */
+  public void setTimingReport(File timingReport) {
+    this.timingReport = timingReport;
+  }
+
+  /**
+   * @param cacheMaxSize maximum size of the user cache of the scanner, like <code>2g</code>. When set, the least
+   * recently used entries of the cache are removed after the analysis, and the engine is downloaded by only one build at
+   * a time.
+   */
+  public void setCacheMaxSize(String cacheMaxSize) {
+    try {
+      this.cacheMaxSize = ScannerCache.parseSize(cacheMaxSize);
+    } catch (IllegalArgumentException e) {
+      throw new BuildException("Invalid cache size '" + cacheMaxSize + "', expected a number of bytes optionally followed by k, m or g", e);
+    }
+  }
+
+  /**
+   * @param keepReport <code>true</code> to keep the analysis report in the <code>scanner-report</code> directory of the
+   * working directory, so that it can be submitted with <code>&lt;sonar:upload&gt;</code> if the engine fails to submit
+   * it. The engine still submits it at the end of the analysis.
+   */
+  public void setKeepReport(boolean keepReport) {
+    this.keepReport = keepReport;
+  }
+
+  /**
+   * Nested <code>&lt;jvmarg&gt;</code> of the forked JVM, like the garbage collector options
+   */
+  public Commandline.Argument createJvmarg() {
+    return javaCommand.createVmArgument();
+  }
+
+  /**
+   * Nested <code>&lt;sources&gt;</code> path, passed as <code>sonar.sources</code>
+   */
+  public Path createSources() {
+    if (sources == null) {
+      sources = new Path(getProject());
+    }
+    return sources.createPath();
+  }
+
+  /**
+   * Nested <code>&lt;tests&gt;</code> path, passed as <code>sonar.tests</code>
+   */
+  public Path createTests() {
+    if (tests == null) {
+      tests = new Path(getProject());
+    }
+    return tests.createPath();
+  }
+
+  /**
+   * Nested <code>&lt;binaries&gt;</code> path, passed as <code>sonar.java.binaries</code>
+   */
+  public Path createBinaries() {
+    if (binaries == null) {
+      binaries = new Path(getProject());
+    }
+    return binaries.createPath();
+  }
+
+  /**
+   * Nested <code>&lt;libraries&gt;</code> path, passed as <code>sonar.java.libraries</code> once the duplicated jars are removed
+   */
+  public Path createLibraries() {
+    if (libraries == null) {
+      libraries = new Path(getProject());
+    }
+    return libraries.createPath();
+  }
 
-  @SuppressWarnings("unchecked")
   @Override
   public void execute() {
+    AnalysisPipeline pipeline = newPipeline(null);
+    Map<String, String> allProps = pipeline.collect();
+
+    if (allProps == null) {
+      log("SonarQube Scanner analysis skipped");
+      return;
+    }
     log(Main.getAntVersion());
     log("SonarQube Ant Task version: " + SonarQubeTaskUtils.getTaskVersion());
     log("Loaded from: " + SonarQubeTaskUtils.getJarPath());
 
+    pipeline.prepare(allProps);
+    if (async) {
+      startInBackground(pipeline, allProps);
+      return;
+    }
+    try {
+      pipeline.run(allProps);
+    } finally {
+      pipeline.publishTimings();
+    }
+  }
+
+  /**
+   * @param moduleName name of the module analysed by {@link SonarQubeBatchTask}, if any
+   */
+  // Visible for mocking
+  AnalysisPipeline newPipeline(@Nullable String moduleName) {
+    return new AnalysisPipeline(this, moduleName);
+  }
+
+  /**
+   * The timings are published by the thread joining the analysis, as Ant properties must be set by the build thread.
+   */
+  private void startInBackground(AnalysisPipeline pipeline, Map<String, String> properties) {
+    BackgroundAnalysis analysis = new BackgroundAnalysis(asyncId, () -> pipeline.run(properties), super::log, pipeline::publishTimings);
+    backgroundAnalysis = analysis;
+    getProject().addReference(asyncId, analysis);
+    analysis.start(getProject());
+    super.log("SonarQube Scanner analysis started in the background, join it with <sonar:await id=\"" + asyncId + "\"/>", Project.MSG_INFO);
+  }
+
+  /**
+   * Messages of a background analysis are kept until it is joined.
+   */
+  @Override
+  public void log(String msg, int msgLevel) {
+    BackgroundAnalysis analysis = backgroundAnalysis;
+    if (analysis == null || !analysis.keep(msg, msgLevel)) {
+      super.log(msg, msgLevel);
+    }
+  }
+
+  /**
+   * Merges the properties of the analysis, by increasing order of precedence: project base directory and verbosity,
+   * environment (<code>SONARQUBE_SCANNER_PARAMS</code>), Ant project properties. Only the Ant properties selected by
+   * {@link #isPassedToScanner(String)} are converted and kept.
+   */
+  Map<String, String> collectProperties() {
     Map<String, String> allProps = new HashMap<>();
+    Map<String, String> origins = new HashMap<>();
     allProps.put(PROJECT_BASEDIR_PROPERTY, getProject().getBaseDir().getAbsolutePath());
+    origins.put(PROJECT_BASEDIR_PROPERTY, ORIGIN_BASEDIR);
     if (SonarQubeTaskUtils.getAntLoggerLever(getProject()) >= 3) {
       allProps.put(VERBOSE_PROPERTY, "true");
+      origins.put(VERBOSE_PROPERTY, ORIGIN_LOG_LEVEL);
     }
 
-    putAll(Utils.loadEnvironmentProperties(getEnv()), allProps);
-    allProps.putAll(
-      getProject().getProperties()
-        .entrySet()
-        .stream()
-        .collect(toMap(Map.Entry::getKey, entry -> entry.getValue().toString())));
+    Properties envProps = environmentProperties(getEnv());
+    putAll(envProps, allProps);
+    envProps.stringPropertyNames().forEach(key -> origins.put(key, ORIGIN_ENVIRONMENT));
 
-    if ("true".equalsIgnoreCase(allProps.get(ScanProperties.SKIP))) {
-      log("SonarQube Scanner analysis skipped");
-      return;
+    int ignored = 0;
+    for (Map.Entry<String, Object> entry : getProject().getProperties().entrySet()) {
+      if (isPassedToScanner(entry.getKey())) {
+        allProps.put(entry.getKey(), entry.getValue().toString());
+        origins.put(entry.getKey(), ORIGIN_ANT);
+      } else {
+        ignored++;
+      }
     }
+    logOrigins(origins, ignored);
+    return allProps;
+  }
+
+  /**
+   * Ant properties passed to the scanner: analysis properties (<code>sonar.*</code>), module properties
+   * (<code>&lt;module&gt;.sonar.*</code>) and the ones starting with one of the configured prefixes. The timings
+   * published by previous executions of the task are never passed.
+   */
+  private boolean isPassedToScanner(String key) {
+    if (key.startsWith(AnalysisTimings.PROPERTY_PREFIX)) {
+      return false;
+    }
+    if (isSonarProperty(key)) {
+      return true;
+    }
+    for (String prefix : propertyPrefixes) {
+      if (ALL_PROPERTIES.equals(prefix) || key.startsWith(prefix)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean isSonarProperty(String key) {
+    return key.startsWith("sonar.") || key.contains(".sonar.");
+  }
+
+  private void logOrigins(Map<String, String> origins, int ignored) {
+    Map<String, Integer> countByOrigin = new TreeMap<>();
+    origins.values().forEach(origin -> countByOrigin.merge(origin, 1, Integer::sum));
+    StringBuilder summary = new StringBuilder("Analysis properties: ");
+    countByOrigin.forEach((origin, count) -> summary.append(count).append(" from ").append(origin).append(", "));
+    log(summary.append(ignored).append(" other Ant properties not passed to the scanner").toString(), Project.MSG_VERBOSE);
+    new TreeMap<>(origins).forEach((key, origin) -> log("  " + key + " (" + origin + ")", Project.MSG_DEBUG));
+  }
+
+  /**
+   * The JSON of the environment is only parsed when there is one, so that the common case doesn't load the scanner API.
+   */
+  private static Properties environmentProperties(Map<String, String> env) {
+    return env.containsKey(SCANNER_PARAMS_ENV) ? Utils.loadEnvironmentProperties(env) : new Properties();
+  }
+
+  /**
+   * Only relies on Ant and on the properties, so that skipped builds don't load the scanner API.
+   */
+  static boolean isSkipped(Map<String, String> properties) {
+    return "true".equalsIgnoreCase(properties.get(ScanProperties.SKIP));
+  }
+
+  /**
+   * @return <code>true</code> when the analysis runs in another JVM, forked or daemon
+   */
+  boolean isForked() {
+    return fork || daemon;
+  }
+
+  String getEngineId() {
+    return engineId;
+  }
+
+  boolean isIncremental() {
+    return incremental;
+  }
+
+  @CheckForNull
+  File getManifest() {
+    return manifest;
+  }
+
+  boolean isKeepReport() {
+    return keepReport;
+  }
+
+  @CheckForNull
+  File getLogFile() {
+    return logFile;
+  }
+
+  LogOutput.Level getLogFileLevel() {
+    return logFileLevel;
+  }
+
+  long getLogFileMaxSize() {
+    return logFileMaxSize;
+  }
+
+  int getLogFileCount() {
+    return logFileCount;
+  }
+
+  boolean isAsyncLog() {
+    return asyncLog;
+  }
+
+  int getLogBufferSize() {
+    return logBufferSize;
+  }
+
+  AsyncLogOutput.OverflowPolicy getLogOverflow() {
+    return logOverflow;
+  }
+
+  @CheckForNull
+  Path getSources() {
+    return sources;
+  }
+
+  @CheckForNull
+  Path getTests() {
+    return tests;
+  }
+
+  @CheckForNull
+  Path getBinaries() {
+    return binaries;
+  }
+
+  @CheckForNull
+  Path getLibraries() {
+    return libraries;
+  }
+
+  @CheckForNull
+  File getTimingReport() {
+    return timingReport;
+  }
 
-    launchAnalysis(allProps);
+  @CheckForNull
+  File getResourceSamples() {
+    return resourceSamples;
+  }
+
+  long getSampleInterval() {
+    return sampleInterval;
+  }
+
+  int getMaxHeapUsage() {
+    return maxHeapUsage;
+  }
+
+  int getMaxGcTime() {
+    return maxGcTime;
+  }
+
+  boolean isFailAfterResourceThreshold() {
+    return failAfterResourceThreshold;
+  }
+
+  long getCacheMaxSize() {
+    return cacheMaxSize;
+  }
+
+  CommandlineJava getJavaCommand() {
+    return javaCommand;
+  }
+
+  boolean isDaemon() {
+    return daemon;
+  }
+
+  long getDaemonIdleTimeout() {
+    return daemonIdleTimeout;
+  }
+
+  boolean isClassDataSharing() {
+    return classDataSharing;
+  }
+
+  static File workingDirectory(Map<String, String> properties) {
+    return resolve(properties, properties.getOrDefault(WORKING_DIRECTORY_PROPERTY, DEFAULT_WORKING_DIRECTORY));
+  }
+
+  /**
+   * Resolves a path against the project base directory of the analysis.
+   */
+  static File resolve(Map<String, String> properties, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(properties.get(PROJECT_BASEDIR_PROPERTY), path);
   }
 
   // Visible for mocking
@@ -105,12 +769,4 @@ public class SonarQubeTask extends Task {
     }
   }
 
-  // VisibleForTesting
-  void launchAnalysis(Map<String, String> properties) {
-    EmbeddedScanner runner = EmbeddedScanner.create("Ant", SonarQubeTaskUtils.getTaskVersion(), new LogOutputImplementation())
-      .addGlobalProperties(properties);
-    runner.start();
-    runner.execute(properties);
-  }
-
 }
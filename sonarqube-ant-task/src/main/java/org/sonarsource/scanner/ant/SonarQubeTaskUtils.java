@@ -24,12 +24,17 @@ import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 import java.util.Properties;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.BuildLogger;
 import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.XmlLogger;
 
 public final class SonarQubeTaskUtils {
 
@@ -44,8 +49,15 @@ public final class SonarQubeTaskUtils {
    * @return Jar which contains this class
    */
   public static URL getJarPath() {
-    String pathToClass = "/" + SonarQubeTask.class.getName().replace('.', '/') + ".class";
-    URL url = SonarQubeTask.class.getResource(pathToClass);
+    return getJarPath(SonarQubeTask.class);
+  }
+
+  /**
+   * @return Jar or directory which contains the given class
+   */
+  static URL getJarPath(Class<?> clazz) {
+    String pathToClass = "/" + clazz.getName().replace('.', '/') + ".class";
+    URL url = clazz.getResource(pathToClass);
     if (url != null) {
       String uri = extractURI(pathToClass, url.toString());
       if (uri != null) {
@@ -86,10 +98,7 @@ public final class SonarQubeTaskUtils {
       List<BuildListener> listeners = project.getBuildListeners();
       for (BuildListener listener : listeners) {
         if (listener instanceof DefaultLogger) {
-          DefaultLogger logger = (DefaultLogger) listener;
-          Field field = DefaultLogger.class.getDeclaredField("msgOutputLevel");
-          field.setAccessible(true);
-          return (Integer) field.get(logger);
+          return getDefaultLoggerLevel((DefaultLogger) listener);
         }
       }
       return 2;
@@ -99,6 +108,70 @@ public final class SonarQubeTaskUtils {
     }
   }
 
+  /**
+   * Most detailed level of the messages that at least one of the listeners of the project may output, so that the less
+   * important messages can be discarded before being logged. Only the levels of {@link DefaultLogger}s and
+   * {@link XmlLogger}s are known. Other loggers may not override {@link BuildLogger#getMessageOutputLevel()}, which then
+   * answers <code>MSG_INFO</code> whatever their level, so they are considered to output all the messages, like the
+   * listeners that are not loggers. The listeners of the tasks of this library, which never output messages, are ignored.
+   *
+   * @return one of the <code>Project.MSG_*</code> levels
+   */
+  public static int getEffectiveLogLevel(Project project) {
+    try {
+      int level = Project.MSG_ERR;
+      for (BuildListener listener : project.getBuildListeners()) {
+        level = Math.max(level, getListenerLevel(listener));
+      }
+      return level;
+    } catch (Exception e) {
+      // if unable to determine level - don't discard any message
+      return Project.MSG_DEBUG;
+    }
+  }
+
+  private static int getListenerLevel(BuildListener listener) {
+    if (listener instanceof BuildEndListener) {
+      return Project.MSG_ERR;
+    }
+    try {
+      if (listener instanceof DefaultLogger) {
+        return getDefaultLoggerLevel((DefaultLogger) listener);
+      }
+      if (listener instanceof XmlLogger) {
+        // Not available before Ant 1.10.8
+        return ((XmlLogger) listener).getMessageOutputLevel();
+      }
+    } catch (Exception | LinkageError e) {
+      // level is unknown
+    }
+    return Project.MSG_DEBUG;
+  }
+
+  private static int getDefaultLoggerLevel(DefaultLogger logger) throws ReflectiveOperationException {
+    Field field = DefaultLogger.class.getDeclaredField("msgOutputLevel");
+    field.setAccessible(true);
+    return (Integer) field.get(logger);
+  }
+
+  /**
+   * Short hash of the given key, for the names of the files of the user home of the scanner that depend on it
+   *
+   * @return the first 8 bytes of the SHA-256 of the key, in hexadecimal
+   */
+  static String shortHash(String key) {
+    try {
+      StringBuilder hash = new StringBuilder();
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+      for (int i = 0; i < 8; i++) {
+        hash.append(String.format("%02x", digest[i]));
+      }
+      return hash.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
   /**
    * Returns the version of the Ant Task
    *
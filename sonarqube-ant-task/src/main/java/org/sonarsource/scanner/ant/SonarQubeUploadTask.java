@@ -0,0 +1,194 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+
+/**
+ * Submits analysis reports kept by <code>&lt;sonar:sonar keepReport="true"&gt;</code> to the server, without running
+ * the analyses again:
+ * <pre>
+ * &lt;sonar:upload retries="3"&gt;
+ *   &lt;report dir="module1/.scannerwork/scanner-report" projectKey="org.example:module1"/&gt;
+ *   &lt;report dir="module2/.scannerwork/scanner-report" projectKey="org.example:module2"/&gt;
+ * &lt;/sonar:upload&gt;
+ * </pre>
+ * The server, the credentials and the proxy are the ones <code>&lt;sonar:sonar&gt;</code> would use, given the same
+ * properties. Without nested <code>&lt;report&gt;</code>, the report of the working directory is submitted for
+ * <code>sonar.projectKey</code>.
+ * <p>
+ * The engine submits every report it writes, so this task is meant for the reports whose submission failed at the end
+ * of the analysis. The reports the engine submitted are skipped, so that they are not processed twice.
+ */
+public class SonarQubeUploadTask extends Task {
+
+  private static final long FIRST_RETRY_DELAY_MILLIS = 1000;
+
+  private final List<Report> reports = new ArrayList<>();
+  private int retries;
+  private long retryDelayMillis = FIRST_RETRY_DELAY_MILLIS;
+
+  /**
+   * Nested <code>&lt;report&gt;</code> element
+   */
+  public static class Report {
+    @Nullable
+    private File dir;
+    @Nullable
+    private String projectKey;
+
+    /**
+     * @param dir <code>scanner-report</code> directory kept by the analysis
+     */
+    public void setDir(File dir) {
+      this.dir = dir;
+    }
+
+    public void setProjectKey(String projectKey) {
+      this.projectKey = projectKey;
+    }
+  }
+
+  public Report createReport() {
+    Report report = new Report();
+    reports.add(report);
+    return report;
+  }
+
+  /**
+   * @param retries number of times the submission of a report is attempted again when the server can't be reached or
+   * answers with a server error, waiting twice longer each time. Default is 0.
+   */
+  public void setRetries(int retries) {
+    if (retries < 0) {
+      throw new BuildException("The number of retries must not be negative");
+    }
+    this.retries = retries;
+  }
+
+  // VisibleForTesting
+  void setRetryDelayMillis(long retryDelayMillis) {
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  @Override
+  public void execute() {
+    SonarQubeTask task = new SonarQubeTask();
+    task.bindToOwner(this);
+    Map<String, String> properties = task.collectProperties();
+    if (SonarQubeTask.isSkipped(properties)) {
+      log("SonarQube Scanner upload skipped");
+      return;
+    }
+
+    List<Report> toUpload = reports;
+    if (toUpload.isEmpty()) {
+      Report report = new Report();
+      report.setDir(new File(SonarQubeTask.workingDirectory(properties), ReportUploader.REPORT_DIR));
+      report.setProjectKey(properties.get("sonar.projectKey"));
+      toUpload = Collections.singletonList(report);
+    }
+    List<String> characteristics = characteristics(properties);
+    ReportUploader uploader;
+    try {
+      uploader = new ReportUploader(properties, getEnv());
+    } catch (IllegalArgumentException e) {
+      throw new BuildException(e.getMessage(), e);
+    }
+    for (Report report : toUpload) {
+      upload(uploader, report, characteristics);
+    }
+  }
+
+  /**
+   * Branch or pull request of the analysis, like the scanner engine submits them.
+   */
+  private static List<String> characteristics(Map<String, String> properties) {
+    List<String> characteristics = new ArrayList<>();
+    String branch = properties.get("sonar.branch.name");
+    if (branch != null && !branch.isEmpty()) {
+      characteristics.add("branch=" + branch);
+    }
+    String pullRequest = properties.get("sonar.pullrequest.key");
+    if (pullRequest != null && !pullRequest.isEmpty()) {
+      characteristics.add("pullRequest=" + pullRequest);
+    }
+    return characteristics;
+  }
+
+  private void upload(ReportUploader uploader, Report report, List<String> characteristics) {
+    if (report.dir == null || report.projectKey == null || report.projectKey.isEmpty()) {
+      throw new BuildException("The directory and the project key of each report are mandatory");
+    }
+    if (!report.dir.isDirectory()) {
+      throw new BuildException("No analysis report in " + report.dir + ", was the analysis run with keepReport=\"true\"?");
+    }
+    try {
+      String submittedTaskId = ReportUploader.submittedTaskId(report.dir);
+      if (submittedTaskId != null) {
+        log("Report of " + report.projectKey + " already submitted by the analysis, background task " + submittedTaskId);
+        return;
+      }
+    } catch (IOException e) {
+      throw new BuildException("Unable to read the report of " + report.projectKey + ": " + e.getMessage(), e);
+    }
+    long delay = retryDelayMillis;
+    for (int attempt = 0;; attempt++) {
+      try {
+        String taskId = uploader.submit(report.dir, report.projectKey, characteristics);
+        log("Report of " + report.projectKey + " submitted, background task " + taskId);
+        return;
+      } catch (ReportUploader.RejectedException e) {
+        throw new BuildException("The report of " + report.projectKey + " was rejected: " + e.getMessage(), e);
+      } catch (IOException e) {
+        if (attempt >= retries) {
+          throw new BuildException("Unable to submit the report of " + report.projectKey + ": " + e.getMessage(), e);
+        }
+        log("Unable to submit the report of " + report.projectKey + ", retrying in " + delay + "ms: " + e.getMessage(), Project.MSG_WARN);
+        sleep(delay);
+        delay *= 2;
+      }
+    }
+  }
+
+  // Visible for mocking
+  Map<String, String> getEnv() {
+    return System.getenv();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BuildException("Interrupted while waiting to submit the report", e);
+    }
+  }
+
+}
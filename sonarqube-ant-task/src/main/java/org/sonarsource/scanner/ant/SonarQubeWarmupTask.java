@@ -0,0 +1,126 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Task;
+import org.sonarsource.scanner.api.EmbeddedScanner;
+
+/**
+ * Downloads and starts the scanner engine without running an analysis, so that the engine is already in the cache
+ * when <code>&lt;sonar:sonar&gt;</code> runs:
+ * <pre>
+ * &lt;sonar:warmup marker="${build.dir}/sonar-engine.properties"/&gt;
+ * </pre>
+ * The server and the cache are the ones <code>&lt;sonar:sonar&gt;</code> would use, given the same properties.
+ */
+public class SonarQubeWarmupTask extends Task {
+
+  static final String SERVER_VERSION_KEY = "serverVersion";
+
+  @Nullable
+  private File marker;
+
+  /**
+   * @param marker file written once the engine is ready, with the version of the server and the date of the warmup
+   */
+  public void setMarker(File marker) {
+    this.marker = marker;
+  }
+
+  @Override
+  public void execute() {
+    SonarQubeTask task = new SonarQubeTask();
+    task.bindToOwner(this);
+    Map<String, String> properties = task.collectProperties();
+    if (SonarQubeTask.isSkipped(properties)) {
+      log("SonarQube Scanner warmup skipped");
+      return;
+    }
+
+    long start = System.nanoTime();
+    String serverVersion = startEngine(task, properties);
+    log("Scanner engine of SonarQube " + serverVersion + " ready in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    if (marker != null) {
+      writeMarker(marker, properties, serverVersion);
+    }
+  }
+
+  /**
+   * Downloads the engine in the cache if needed, and checks that it can be loaded. Like the analyses limiting the size
+   * of the cache, the warmup holds the lock of the cache meanwhile, so that the engine is downloaded only once. The
+   * loaded engine is released once checked.
+   *
+   * @return the version of the server
+   */
+  // Visible for mocking
+  String startEngine(SonarQubeTask task, Map<String, String> properties) {
+    EmbeddedScanner scanner = EmbeddedAnalysis.newScanner(properties, task.new LogOutputImplementation());
+    File cacheDir = ScannerCache.cacheDir(properties, task.getEnv());
+    try {
+      ScannerCache.locked(cacheDir, scanner::start);
+      return scanner.serverVersion();
+    } catch (IOException e) {
+      throw new BuildException("Unable to lock the scanner cache " + cacheDir, e);
+    } finally {
+      EmbeddedAnalysis.release(scanner);
+    }
+  }
+
+  /**
+   * The marker is replaced atomically, so that concurrent builds never read a partial one.
+   */
+  private static void writeMarker(File marker, Map<String, String> properties, String serverVersion) {
+    Properties props = new Properties();
+    props.setProperty(SERVER_VERSION_KEY, serverVersion);
+    props.setProperty("hostUrl", properties.getOrDefault("sonar.host.url", ""));
+    props.setProperty("taskVersion", SonarQubeTaskUtils.getTaskVersion());
+    props.setProperty("date", String.valueOf(new Date().getTime()));
+    Path target = marker.getAbsoluteFile().toPath();
+    try {
+      Files.createDirectories(target.getParent());
+      Path temp = Files.createTempFile(target.getParent(), marker.getName(), ".tmp");
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+        props.store(writer, "SonarQube scanner engine warmup");
+      }
+      try {
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      throw new BuildException("Unable to write the warmup marker " + marker, e);
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+/**
+ * Analyses the project, then analyses it again every time the analysed files change, until the build is stopped. It
+ * accepts the same attributes and nested elements as <code>&lt;sonar:sonar&gt;</code>:
+ * <pre>
+ * &lt;sonar:watch quietPeriod="500"&gt;
+ *   &lt;sources path="src"/&gt;
+ *   &lt;binaries path="build/classes"/&gt;
+ * &lt;/sonar:watch&gt;
+ * </pre>
+ * The whole project is analysed every time, as the server considers the files missing from an analysis as deleted. The
+ * incremental mode is always enabled, so that changes that don't change the content of the analysed files, like a
+ * compilation producing the same classes, don't run an analysis. The scanner API can't run several analyses with the
+ * same engine, so when the analysis runs in the Ant JVM, the engine of the next analysis is started as soon as the
+ * previous analysis is over, while waiting for changes. Use <code>daemon="true"</code> to also keep the classes of the
+ * analysis compiled between analyses.
+ */
+public class SonarQubeWatchTask extends SonarQubeTask {
+
+  private static final long DEFAULT_QUIET_PERIOD_MILLIS = 1000;
+
+  private long quietPeriod = DEFAULT_QUIET_PERIOD_MILLIS;
+  private int maxRounds;
+
+  /**
+   * @param quietPeriod number of milliseconds without changes after which the analysis runs again, so that saving
+   * several files or compiling the project runs a single analysis. Default is 1000.
+   */
+  public void setQuietPeriod(long quietPeriod) {
+    if (quietPeriod < 0) {
+      throw new BuildException("The quiet period must not be negative");
+    }
+    this.quietPeriod = quietPeriod;
+  }
+
+  @Override
+  public void setAsync(boolean async) {
+    if (async) {
+      throw new BuildException("<sonar:watch> can't run in the background");
+    }
+  }
+
+  /**
+   * Number of analyses after which the task returns, or 0 to watch until the build is stopped
+   */
+  // VisibleForTesting
+  void setMaxRounds(int maxRounds) {
+    this.maxRounds = maxRounds;
+  }
+
+  @Override
+  public void execute() {
+    setIncremental(true);
+    AnalysisPipeline pipeline = newPipeline(null);
+    Map<String, String> collected = pipeline.collect();
+    if (collected == null) {
+      log("SonarQube Scanner analysis skipped");
+      return;
+    }
+    Map<String, String> properties = new HashMap<>(collected);
+    pipeline.prepare(properties);
+    List<File> roots = AnalysisPipeline.fingerprintedRoots(properties);
+    if (roots == null) {
+      throw new BuildException("Watching is not supported with wildcards in paths or with 'sonar.modules'");
+    }
+    try (FileWatcher watcher = new FileWatcher(roots, AnalysisPipeline.excludedDirs(properties, AnalysisPipeline.manifestFile(this, properties)))) {
+      for (int round = 1; maxRounds == 0 || round <= maxRounds; round++) {
+        if (round > 1) {
+          log("Watching " + watcher.size() + " directories for changes, stop the build to stop watching");
+          SortedSet<Path> changed = watcher.awaitChanges(quietPeriod);
+          log(changed.size() + " file(s) changed");
+          changed.forEach(path -> log("  " + path, Project.MSG_VERBOSE));
+          // the nested paths are resolved again, as files may have been added
+          pipeline = newPipeline(null);
+          properties = new HashMap<>(collected);
+          pipeline.prepare(properties);
+        }
+        analyse(pipeline, properties, maxRounds == 0 || round < maxRounds);
+      }
+    } catch (IOException e) {
+      throw new BuildException("Unable to watch the analysed files", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log("Stopped watching the analysed files");
+    }
+  }
+
+  /**
+   * A failed analysis does not stop the watch, so that the next change can fix it.
+   *
+   * @param next <code>true</code> if another analysis may follow this one
+   */
+  private void analyse(AnalysisPipeline pipeline, Map<String, String> properties, boolean next) {
+    try {
+      pipeline.run(properties);
+    } catch (RuntimeException e) {
+      // an analysis running in the Ant JVM fails with the exceptions of the scanner
+      log("SonarQube Scanner analysis failed: " + e.getMessage(), Project.MSG_ERR);
+    } finally {
+      pipeline.publishTimings();
+    }
+    if (next && !isForked()) {
+      prepareNextEngine(properties);
+    }
+  }
+
+  private void prepareNextEngine(Map<String, String> properties) {
+    Object current = getProject().getReference(getEngineId());
+    if (current instanceof PreparedEngine && !((PreparedEngine) current).isTaken()) {
+      // not used by an analysis skipped as nothing changed
+      return;
+    }
+    PreparedEngine engine = new PreparedEngine(getEngineId(), properties, ScannerCache.cacheDir(properties, getEnv()));
+    getProject().addReference(getEngineId(), engine);
+    engine.start(getProject());
+  }
+
+}
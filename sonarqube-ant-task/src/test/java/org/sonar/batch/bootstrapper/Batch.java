@@ -0,0 +1,166 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.batch.bootstrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Stand-in for the scanner engine, served by <code>StandInServer</code> and loaded by the scanner API like the real
+ * engine. It makes the same kind of requests as the real engine, and logs their duration:
+ * <ol>
+ *   <li>settings</li>
+ *   <li>list of the installed plugins, then download of each plugin</li>
+ *   <li>submission of the report, whose size is set by <code>sonar.standIn.reportSize</code></li>
+ * </ol>
+ */
+public class Batch {
+
+  private static final Pattern PLUGIN_KEY = Pattern.compile("\"key\"\\s*:\\s*\"([^\"]+)\"");
+
+  private final Map<String, String> properties;
+  private final LogOutput logOutput;
+
+  private Batch(Builder builder) {
+    this.properties = builder.properties;
+    this.logOutput = builder.logOutput;
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  public Batch execute() {
+    String hostUrl = properties.getOrDefault("sonar.host.url", "http://localhost:9000").replaceAll("/+$", "");
+    try {
+      get(hostUrl, "/api/settings/values.protobuf", "Load global settings");
+      String plugins = new String(get(hostUrl, "/api/plugins/installed", "Load plugins index"), StandardCharsets.UTF_8);
+      Matcher matcher = PLUGIN_KEY.matcher(plugins);
+      while (matcher.find()) {
+        get(hostUrl, "/api/plugins/download?plugin=" + matcher.group(1), "Download plugin " + matcher.group(1));
+      }
+      submit(hostUrl, report());
+    } catch (IOException e) {
+      throw new IllegalStateException("Stand-in analysis failed: " + e.getMessage(), e);
+    }
+    return this;
+  }
+
+  private byte[] get(String hostUrl, String path, String step) throws IOException {
+    long start = System.currentTimeMillis();
+    HttpURLConnection connection = (HttpURLConnection) new URL(hostUrl + path).openConnection();
+    try {
+      checkStatus(connection, path);
+      byte[] body = read(connection.getInputStream());
+      logOutput.log(step + " (done) | time=" + (System.currentTimeMillis() - start) + "ms", LogOutput.Level.INFO);
+      return body;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private void submit(String hostUrl, byte[] report) throws IOException {
+    long start = System.currentTimeMillis();
+    String projectKey = properties.getOrDefault("sonar.projectKey", "");
+    HttpURLConnection connection = (HttpURLConnection) new URL(hostUrl + "/api/ce/submit?projectKey=" + projectKey).openConnection();
+    try {
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setFixedLengthStreamingMode(report.length);
+      connection.setRequestProperty("Content-Type", "application/zip");
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(report);
+      }
+      checkStatus(connection, "/api/ce/submit");
+      read(connection.getInputStream());
+      logOutput.log("Analysis report uploaded in " + (System.currentTimeMillis() - start) + "ms", LogOutput.Level.INFO);
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private byte[] report() throws IOException {
+    int size = Integer.parseInt(properties.getOrDefault("sonar.standIn.reportSize", "65536"));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+      zip.setLevel(0);
+      zip.putNextEntry(new ZipEntry("metadata.pb"));
+      zip.write(properties.getOrDefault("sonar.projectKey", "").getBytes(StandardCharsets.UTF_8));
+      zip.putNextEntry(new ZipEntry("components.pb"));
+      zip.write(new byte[size]);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void checkStatus(HttpURLConnection connection, String path) throws IOException {
+    int status = connection.getResponseCode();
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException("Status " + status + " returned by " + path);
+    }
+  }
+
+  private static byte[] read(InputStream in) throws IOException {
+    try (InputStream input = in) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = input.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  public static class Builder {
+    private Map<String, String> properties = Collections.emptyMap();
+    private LogOutput logOutput = (message, level) -> {
+    };
+
+    public Builder setEnvironment(EnvironmentInformation environment) {
+      return this;
+    }
+
+    public Builder setGlobalProperties(Map<String, String> properties) {
+      this.properties = properties;
+      return this;
+    }
+
+    public Builder setLogOutput(LogOutput logOutput) {
+      this.logOutput = logOutput;
+      return this;
+    }
+
+    public Batch build() {
+      return new Batch(this);
+    }
+  }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonar.batch.bootstrapper;
+
+/**
+ * Same contract as the environment information of the scanner engine, see {@link Batch}.
+ */
+public class EnvironmentInformation {
+
+  private final String key;
+  private final String version;
+
+  public EnvironmentInformation(String key, String version) {
+    this.key = key;
+    this.version = version;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+}
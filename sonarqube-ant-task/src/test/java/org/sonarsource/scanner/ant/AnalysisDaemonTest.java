@@ -0,0 +1,222 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class AnalysisDaemonTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File registry;
+  private AnalysisDaemon daemon;
+  private Thread serving;
+
+  @Before
+  public void setUp() throws IOException {
+    registry = new File(folder.getRoot(), "daemons/daemon.properties");
+    daemon = new AnalysisDaemon(registry, 60_000);
+    serving = new Thread(daemon::serve);
+    serving.start();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    daemon.stop();
+    serving.join(5000);
+  }
+
+  @Test
+  public void runSuccessiveAnalysesInDaemon() throws IOException {
+    Task task = new Task() {
+    };
+    task.setProject(new Project());
+    for (String projectKey : new String[] {"first", "second"}) {
+      File dump = folder.newFile();
+      Map<String, String> properties = new HashMap<>();
+      properties.put("sonar.projectKey", projectKey);
+      properties.put("sonar.projectBaseDir", folder.getRoot().getAbsolutePath());
+      properties.put("sonar.scanner.dumpToFile", dump.getAbsolutePath());
+      List<String> logs = new ArrayList<>();
+      AnalysisTimings timings = new AnalysisTimings();
+
+      boolean ran = AnalysisDaemon.launch(task, new CommandlineJava(), registry, 0, properties, (message, level) -> logs.add(message), timings,
+        null);
+
+      assertThat(ran).isTrue();
+      assertThat(load(dump)).containsEntry("sonar.projectKey", projectKey);
+      assertThat(timings.get(AnalysisTimings.Phase.ANALYSIS)).isNotNull();
+    }
+  }
+
+  @Test
+  public void startSingleDaemonForConcurrentBuilds() throws Exception {
+    File sharedRegistry = new File(folder.getRoot(), "daemons/shared.properties");
+    List<AnalysisDaemon> startedDaemons = Collections.synchronizedList(new ArrayList<>());
+    Runnable startDaemon = () -> {
+      try {
+        AnalysisDaemon started = new AnalysisDaemon(sharedRegistry, 60_000);
+        startedDaemons.add(started);
+        new Thread(started::serve).start();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    };
+    ExecutorService builds = Executors.newFixedThreadPool(4);
+    CountDownLatch go = new CountDownLatch(1);
+    try {
+      List<Future<AnalysisDaemon.Connection>> connections = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        connections.add(builds.submit(() -> {
+          go.await();
+          return AnalysisDaemon.connectOrStart(sharedRegistry, startDaemon);
+        }));
+      }
+      go.countDown();
+      for (Future<AnalysisDaemon.Connection> connection : connections) {
+        try (AnalysisDaemon.Connection c = connection.get(30, TimeUnit.SECONDS)) {
+          assertThat(c).isNotNull();
+        }
+      }
+
+      assertThat(startedDaemons).hasSize(1);
+    } finally {
+      builds.shutdownNow();
+      startedDaemons.forEach(AnalysisDaemon::stop);
+    }
+  }
+
+  @Test
+  public void refuseUnknownClients() throws IOException {
+    assertThat(AnalysisDaemon.connect(registry)).isNotNull();
+
+    Properties props = load(registry);
+    props.setProperty("token", "guessed");
+    try (Writer writer = Files.newBufferedWriter(registry.toPath(), StandardCharsets.UTF_8)) {
+      props.store(writer, null);
+    }
+
+    assertThat(AnalysisDaemon.connect(registry)).isNull();
+  }
+
+  @Test
+  public void registryReadableByOwnerOnly() throws IOException {
+    assumeTrue(Files.getFileStore(registry.toPath()).supportsFileAttributeView("posix"));
+
+    assertThat(Files.getPosixFilePermissions(registry.toPath())).containsOnly(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE);
+  }
+
+  @Test
+  public void resolveEnvironmentOfTheBuild() {
+    Map<String, String> properties = new HashMap<>();
+    properties.put("sonar.projectKey", "key");
+    Map<String, String> env = new HashMap<>();
+    assertThat(AnalysisDaemon.resolveEnvironment(properties, env)).doesNotContainKey("sonar.host.url");
+
+    env.put("SONAR_HOST_URL", "http://build-host");
+    env.put("SONAR_USER_HOME", folder.getRoot().getAbsolutePath());
+
+    assertThat(AnalysisDaemon.resolveEnvironment(properties, env))
+      .containsEntry("sonar.projectKey", "key")
+      .containsEntry("sonar.host.url", "http://build-host")
+      .containsEntry("sonar.userHome", folder.getRoot().getAbsolutePath());
+
+    env.put("BITBUCKET_BUILD_NUMBER", "42");
+    assertThat(AnalysisDaemon.resolveEnvironment(properties, env)).containsEntry("sonar.host.url", "https://sonarcloud.io");
+
+    properties.put("sonar.host.url", "http://property-host");
+    properties.put("sonar.userHome", "/property/home");
+    assertThat(AnalysisDaemon.resolveEnvironment(properties, env))
+      .containsEntry("sonar.host.url", "http://property-host")
+      .containsEntry("sonar.userHome", new File("/property/home").getAbsolutePath());
+  }
+
+  @Test
+  public void stopWhenIdle() throws Exception {
+    File idleRegistry = new File(folder.getRoot(), "idle.properties");
+    AnalysisDaemon idle = new AnalysisDaemon(idleRegistry, 100);
+    assertThat(idleRegistry).exists();
+
+    idle.serve();
+
+    assertThat(idleRegistry).doesNotExist();
+    assertThat(AnalysisDaemon.connect(idleRegistry)).isNull();
+  }
+
+  @Test
+  public void registryDependsOnJvmCommand() {
+    CommandlineJava command = new CommandlineJava();
+    File defaultRegistry = AnalysisDaemon.registry(folder.getRoot(), command);
+    command.setMaxmemory("2g");
+
+    assertThat(AnalysisDaemon.registry(folder.getRoot(), command)).isNotEqualTo(defaultRegistry);
+    assertThat(defaultRegistry.getName()).matches("daemon-[0-9a-f]{16}\\.properties");
+  }
+
+  @Test
+  public void registryDependsOnSharedArchive() throws IOException {
+    CommandlineJava command = new CommandlineJava();
+    ClassDataSharing cds = ClassDataSharing.of(new File(folder.getRoot(), "cds"), command, Collections.singletonList(folder.newFile("task.jar")));
+    File withoutArchive = AnalysisDaemon.registry(folder.getRoot(), cds.apply(command, false));
+    Files.createDirectories(cds.archive().getParentFile().toPath());
+    Files.write(cds.archive().toPath(), new byte[] {1});
+
+    assertThat(AnalysisDaemon.registry(folder.getRoot(), cds.apply(command, false))).isNotEqualTo(withoutArchive);
+  }
+
+  private static Properties load(File file) throws IOException {
+    Properties props = new Properties();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    }
+    return props;
+  }
+
+}
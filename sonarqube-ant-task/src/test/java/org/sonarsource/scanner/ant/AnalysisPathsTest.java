@@ -0,0 +1,112 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.apache.tools.ant.types.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalysisPathsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void resolveCanonicalPathsWithoutDuplicates() throws IOException {
+    File dir = folder.newFolder("lib");
+    File jar = new File(dir, "a.jar");
+
+    Path path = new Path(new Project());
+    path.createPathElement().setLocation(jar);
+    path.createPathElement().setLocation(new File(dir, "../lib/a.jar"));
+    path.createPathElement().setLocation(dir);
+
+    assertThat(AnalysisPaths.resolve(path)).containsExactly(jar.getCanonicalFile(), dir.getCanonicalFile());
+  }
+
+  @Test
+  public void resolveFilesOfFilesetsAgainstCanonicalBaseDirectory() throws IOException {
+    File a = write("src/main/A.java", "class A {}");
+    File b = write("src/main/pkg/B.java", "class B {}");
+    write("src/main/README.txt", "not a source");
+    Project project = new Project();
+    Path path = new Path(project);
+    FileSet fileSet = new FileSet();
+    fileSet.setProject(project);
+    fileSet.setDir(new File(folder.getRoot(), "src/../src/main"));
+    fileSet.setIncludes("**/*.java");
+    path.addFileset(fileSet);
+    path.createPathElement().setLocation(a);
+
+    assertThat(AnalysisPaths.resolve(path)).containsExactly(a.getCanonicalFile(), b.getCanonicalFile());
+  }
+
+  @Test
+  public void removeFilesWithDuplicatedContent() throws IOException {
+    File a = write("one/a.jar", "content");
+    File copy = write("two/a.jar", "content");
+    File sameSize = write("two/b.jar", "CONTENT");
+    File other = write("three/c.jar", "other content");
+    File classes = folder.newFolder("classes");
+
+    assertThat(AnalysisPaths.withoutDuplicatedContent(Arrays.asList(a, classes, copy, sameSize, other)))
+      .containsExactly(a, classes, sameSize, other);
+  }
+
+  @Test
+  public void quotePathsContainingCommas() {
+    assertThat(AnalysisPaths.toPropertyValue(Arrays.asList(new File("/lib/a.jar"), new File("/lib/b,c.jar"))))
+      .isEqualTo("/lib/a.jar,\"/lib/b,c.jar\"");
+  }
+
+  @Test
+  public void parseQuotedValuesLikeTheEngine() {
+    assertThat(AnalysisPaths.fromPropertyValue(" /lib/a.jar , \"/lib/b,c.jar\",,\"/lib/\"\"d\"\".jar\" ,"))
+      .containsExactly("/lib/a.jar", "/lib/b,c.jar", "/lib/\"d\".jar");
+    assertThat(AnalysisPaths.fromPropertyValue("")).isEmpty();
+  }
+
+  @Test
+  public void writeValuesParsedBack() {
+    List<File> files = Arrays.asList(new File("/lib/a.jar"), new File("/lib/b,c.jar"), new File("/lib/\"d\".jar"));
+
+    assertThat(AnalysisPaths.fromPropertyValue(AnalysisPaths.toPropertyValue(files)))
+      .containsExactly("/lib/a.jar", "/lib/b,c.jar", "/lib/\"d\".jar");
+  }
+
+  private File write(String path, String content) throws IOException {
+    File file = new File(folder.getRoot(), path);
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+}
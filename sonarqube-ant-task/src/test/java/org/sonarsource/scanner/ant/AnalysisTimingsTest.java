@@ -0,0 +1,99 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarsource.scanner.api.LogOutput;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalysisTimingsTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void countLogMessagesAndPublishTimings() throws IOException {
+    AnalysisTimings timings = new AnalysisTimings();
+    List<String> logs = new ArrayList<>();
+    LogOutput logOutput = timings.counting((message, level) -> logs.add(message));
+    logOutput.log("one", Level.INFO);
+    logOutput.log("two", Level.INFO);
+    logOutput.log("three", Level.WARN);
+    timings.set(AnalysisTimings.Phase.BOOTSTRAP, 42);
+
+    Project project = new Project();
+    project.setProperty("sonar.timing.one.bootstrap.ms", "1");
+    timings.publish(project, null);
+    timings.publish(project, "one");
+
+    assertThat(logs).containsExactly("one", "two", "three");
+    assertThat(project.getProperty("sonar.timing.bootstrap.ms")).isEqualTo("42");
+    assertThat(project.getProperty("sonar.timing.one.bootstrap.ms")).isEqualTo("1");
+    assertThat(project.getProperty("sonar.timing.log.info.count")).isEqualTo("2");
+    assertThat(project.getProperty("sonar.timing.log.error.count")).isEqualTo("0");
+    assertThat(project.getProperty("sonar.timing.analysis.ms")).isNull();
+    assertThat(timings.summary()).isEqualTo("Timings: bootstrap=42ms, log messages: ERROR=0 WARN=1 INFO=2 DEBUG=0 TRACE=0");
+
+    File report = new File(folder.getRoot(), "report.json");
+    timings.writeJson(report, "a\"b");
+    assertThat(new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8)).isEqualTo("{\n"
+      + "  \"module\": \"a\\\"b\",\n"
+      + "  \"phasesMs\": {\n"
+      + "    \"bootstrap\": 42\n"
+      + "  },\n"
+      + "  \"logMessages\": {\n"
+      + "    \"ERROR\": 0,\n"
+      + "    \"WARN\": 1,\n"
+      + "    \"INFO\": 2,\n"
+      + "    \"DEBUG\": 0,\n"
+      + "    \"TRACE\": 0\n"
+      + "  }\n"
+      + "}\n");
+  }
+
+  @Test
+  public void publishSizeOfProperties() throws IOException {
+    AnalysisTimings timings = new AnalysisTimings();
+    timings.setProperties(Collections.singletonMap("sonar.sources", "src,test"));
+
+    Project project = new Project();
+    timings.publish(project, null);
+    File report = new File(folder.getRoot(), "report.json");
+    timings.writeJson(report, null);
+
+    assertThat(project.getProperty("sonar.timing.properties.count")).isEqualTo("1");
+    assertThat(project.getProperty("sonar.timing.properties.chars")).isEqualTo("21");
+    assertThat(new String(Files.readAllBytes(report.toPath()), StandardCharsets.UTF_8))
+      .contains("  \"properties\": {\n    \"count\": 1,\n    \"chars\": 21\n  },\n  \"logMessages\"");
+  }
+
+}
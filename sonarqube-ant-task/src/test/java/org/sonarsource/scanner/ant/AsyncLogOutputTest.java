@@ -0,0 +1,116 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.sonarsource.scanner.api.LogOutput;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class AsyncLogOutputTest {
+
+  private final List<String> delivered = new CopyOnWriteArrayList<>();
+  private final CountDownLatch firstMessageReceived = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  /**
+   * Blocks on the first message until released, so that the buffer fills up
+   */
+  private final LogOutput slowOutput = (message, level) -> {
+    delivered.add(level + " " + message);
+    if (firstMessageReceived.getCount() > 0) {
+      firstMessageReceived.countDown();
+      await(release);
+    }
+  };
+
+  @Test
+  public void deliverAllMessagesInOrderOnClose() {
+    LogOutput recorder = (message, level) -> delivered.add(level + " " + message);
+    AsyncLogOutput output = new AsyncLogOutput(recorder, 4, AsyncLogOutput.OverflowPolicy.BLOCK);
+    for (int i = 0; i < 1000; i++) {
+      output.log("message " + i, i % 2 == 0 ? Level.DEBUG : Level.INFO);
+    }
+    output.close();
+
+    assertThat(delivered).hasSize(1000);
+    assertThat(delivered.get(0)).isEqualTo("DEBUG message 0");
+    assertThat(delivered.get(999)).isEqualTo("INFO message 999");
+
+    output.log("late", Level.ERROR);
+    assertThat(delivered).endsWith("ERROR late");
+  }
+
+  @Test
+  public void dropDebugMessagesWhenFull() {
+    AsyncLogOutput output = new AsyncLogOutput(slowOutput, 2, AsyncLogOutput.OverflowPolicy.DROP_DEBUG);
+    output.log("first", Level.INFO);
+    await(firstMessageReceived);
+    output.log("info", Level.INFO);
+    output.log("error", Level.ERROR);
+    output.log("debug", Level.DEBUG);
+    output.log("trace", Level.TRACE);
+    release.countDown();
+    output.close();
+
+    assertThat(delivered).containsExactly("INFO first", "INFO info", "ERROR error", "WARN 2 log message(s) dropped because the log buffer was full");
+  }
+
+  @Test
+  public void dropOldestMessagesButErrorsWhenFull() {
+    AsyncLogOutput output = new AsyncLogOutput(slowOutput, 2, AsyncLogOutput.OverflowPolicy.DROP_OLDEST);
+    output.log("first", Level.INFO);
+    await(firstMessageReceived);
+    output.log("info1", Level.INFO);
+    output.log("error", Level.ERROR);
+    output.log("info2", Level.INFO);
+    release.countDown();
+    output.log("info3", Level.INFO);
+    output.close();
+
+    assertThat(delivered).contains("INFO first", "ERROR error", "INFO info2", "INFO info3").doesNotContain("INFO info1");
+    assertThat(delivered).endsWith("WARN 1 log message(s) dropped because the log buffer was full");
+  }
+
+  @Test
+  public void rethrowDeliveryFailureOnClose() {
+    AsyncLogOutput output = new AsyncLogOutput((message, level) -> {
+      throw new IllegalStateException("Listener failure");
+    }, 2, AsyncLogOutput.OverflowPolicy.BLOCK);
+    output.log("message", Level.INFO);
+
+    assertThatThrownBy(output::close).hasMessage("Listener failure");
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
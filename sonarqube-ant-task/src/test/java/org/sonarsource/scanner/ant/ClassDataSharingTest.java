@@ -0,0 +1,152 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.apache.tools.ant.launch.AntMain;
+import org.apache.tools.ant.taskdefs.Execute;
+import org.apache.tools.ant.types.CommandlineJava;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class ClassDataSharingTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File cdsDir;
+  private File jar;
+  private Task task;
+
+  @Before
+  public void setUp() throws IOException {
+    cdsDir = new File(folder.getRoot(), "cds");
+    jar = folder.newFile("task.jar");
+    task = new Task() {
+    };
+    task.setProject(new Project());
+  }
+
+  @Test
+  public void archiveKeyedByJvmAndJars() throws IOException {
+    CommandlineJava command = new CommandlineJava();
+    File archive = ClassDataSharing.of(cdsDir, command, Collections.singletonList(jar)).archive();
+
+    assertThat(archive.getParentFile()).isEqualTo(cdsDir);
+    assertThat(ClassDataSharing.of(cdsDir, command, Collections.singletonList(jar)).archive()).isEqualTo(archive);
+    assertThat(ClassDataSharing.of(cdsDir, command, Collections.singletonList(folder.getRoot()))).isNull();
+
+    Files.write(jar.toPath(), new byte[] {1});
+    assertThat(ClassDataSharing.of(cdsDir, command, Collections.singletonList(jar)).archive()).isNotEqualTo(archive);
+
+    CommandlineJava otherCommand = new CommandlineJava();
+    otherCommand.setMaxmemory("2g");
+    assertThat(ClassDataSharing.of(cdsDir, otherCommand, Collections.singletonList(jar)).archive())
+      .isNotEqualTo(ClassDataSharing.of(cdsDir, command, Collections.singletonList(jar)).archive());
+  }
+
+  @Test
+  public void dumpClassesThenUseArchive() throws IOException {
+    CommandlineJava command = new CommandlineJava();
+    ClassDataSharing cds = ClassDataSharing.of(cdsDir, command, Collections.singletonList(jar));
+
+    assertThat(cds.apply(command, false).getVmCommand().getArguments()).isEmpty();
+    List<String> dumpArgs = Arrays.asList(cds.apply(command, true).getVmCommand().getArguments());
+    assertThat(dumpArgs).hasSize(2).first().isEqualTo("-XX:+IgnoreUnrecognizedVMOptions");
+    assertThat(dumpArgs.get(1)).startsWith("-XX:ArchiveClassesAtExit=" + cds.archive().getAbsolutePath() + ".");
+    assertThat(command.getVmCommand().getArguments()).isEmpty();
+
+    // written by the JVM when it exits
+    Files.write(new File(dumpArgs.get(1).substring(dumpArgs.get(1).indexOf('=') + 1)).toPath(), new byte[] {1});
+    cds.publish(task);
+
+    assertThat(cdsDir.list()).containsExactly(cds.archive().getName());
+    assertThat(ClassDataSharing.of(cdsDir, command, Collections.singletonList(jar)).apply(command, true).getVmCommand().getArguments())
+      .containsExactly("-XX:+IgnoreUnrecognizedVMOptions", "-XX:SharedArchiveFile=" + cds.archive().getAbsolutePath());
+  }
+
+  @Test
+  public void removeUnusedArchivesAndStaleDumps() throws IOException {
+    long now = System.currentTimeMillis();
+    File used = newFile("classes-1.jsa", now - TimeUnit.DAYS.toMillis(29));
+    File unused = newFile("classes-2.jsa", now - TimeUnit.DAYS.toMillis(31));
+    File dumping = newFile("classes-3.jsa.1.tmp", now - TimeUnit.HOURS.toMillis(1));
+    File stale = newFile("classes-3.jsa.2.tmp", now - TimeUnit.DAYS.toMillis(2));
+    File other = newFile("other", now - TimeUnit.DAYS.toMillis(365));
+
+    ClassDataSharing.removeUnused(cdsDir, now);
+
+    assertThat(used).exists();
+    assertThat(unused).doesNotExist();
+    assertThat(dumping).exists();
+    assertThat(stale).doesNotExist();
+    assertThat(other).exists();
+  }
+
+  @Test
+  public void createArchiveWithForkedJvm() throws IOException, URISyntaxException {
+    assumeTrue(!System.getProperty("java.specification.version").startsWith("1.")
+      && Integer.parseInt(System.getProperty("java.specification.version")) >= 13);
+    List<File> jars = Arrays.asList(new File(SonarQubeTaskUtils.getJarPath(Project.class).toURI()),
+      new File(SonarQubeTaskUtils.getJarPath(AntMain.class).toURI()));
+    CommandlineJava command = new CommandlineJava();
+    command.setClassname("org.apache.tools.ant.Main");
+    for (File location : jars) {
+      command.createClasspath(task.getProject()).createPathElement().setLocation(location);
+    }
+    command.createArgument().setValue("-version");
+    ClassDataSharing cds = ClassDataSharing.of(cdsDir, command, jars);
+
+    assertThat(run(cds.apply(command, true))).isZero();
+    cds.publish(task);
+
+    assertThat(cds.archive()).isFile();
+    assertThat(run(cds.apply(command, true))).isZero();
+  }
+
+  private static int run(CommandlineJava command) throws IOException {
+    Execute execute = new Execute();
+    execute.setCommandline(command.getCommandline());
+    return execute.execute();
+  }
+
+  private File newFile(String name, long lastModified) throws IOException {
+    File file = new File(cdsDir, name);
+    Files.createDirectories(cdsDir.toPath());
+    Files.write(file.toPath(), new byte[] {1});
+    assertThat(file.setLastModified(lastModified)).isTrue();
+    return file;
+  }
+
+}
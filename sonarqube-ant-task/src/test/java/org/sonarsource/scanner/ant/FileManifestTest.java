@@ -0,0 +1,144 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class FileManifestTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void detectAddedModifiedAndDeletedFiles() throws IOException {
+    File src = folder.newFolder("src");
+    File foo = write(new File(src, "Foo.java"), "class Foo {}");
+    File bar = write(new File(src, "Bar.java"), "class Bar {}");
+
+    FileManifest previous = FileManifest.compute(Collections.singletonList(src), Collections.emptyList(), "settings", null);
+    assertThat(previous.size()).isEqualTo(2);
+    assertThat(FileManifest.compute(Collections.singletonList(src), Collections.emptyList(), "settings", previous).changedSince(previous))
+      .isEmpty();
+
+    write(foo, "class Foo { }");
+    Files.delete(bar.toPath());
+    File baz = write(new File(src, "Baz.java"), "class Baz {}");
+
+    FileManifest current = FileManifest.compute(Collections.singletonList(src), Collections.emptyList(), "settings", previous);
+    assertThat(current.changedSince(previous))
+      .containsExactly(bar.getAbsolutePath(), baz.getAbsolutePath(), foo.getAbsolutePath());
+  }
+
+  @Test
+  public void ignoreExcludedDirectories() throws IOException {
+    File baseDir = folder.newFolder("base");
+    write(new File(baseDir, "Foo.java"), "class Foo {}");
+    write(new File(baseDir, ".scannerwork/report.pb"), "report");
+
+    FileManifest manifest = FileManifest.compute(Collections.singletonList(baseDir),
+      Collections.singletonList(new File(baseDir, ".scannerwork")), "settings", null);
+
+    assertThat(manifest.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void failOnUnreadableDirectory() throws IOException {
+    File src = folder.newFolder("src");
+    write(new File(src, "Foo.java"), "class Foo {}");
+    File unreadable = folder.newFolder("src", "unreadable");
+    assumeTrue(unreadable.setReadable(false) && !unreadable.canRead());
+    try {
+      assertThatThrownBy(() -> FileManifest.compute(Collections.singletonList(src), Collections.emptyList(), "settings", null))
+        .isInstanceOf(IOException.class)
+        .hasMessageContaining("unreadable");
+    } finally {
+      unreadable.setReadable(true);
+    }
+  }
+
+  @Test
+  public void saveAndLoad() throws IOException {
+    File src = folder.newFolder("src");
+    write(new File(src, "Foo.java"), "class Foo {}");
+    File file = new File(folder.getRoot(), "out/manifest.properties");
+
+    FileManifest manifest = FileManifest.compute(Arrays.asList(src, new File("missing")), Collections.emptyList(), "settings", null);
+    manifest.save(file);
+    FileManifest loaded = FileManifest.load(file);
+
+    assertThat(loaded.settings()).isEqualTo("settings");
+    assertThat(loaded.size()).isEqualTo(1);
+    assertThat(manifest.changedSince(loaded)).isEmpty();
+  }
+
+  @Test
+  public void ignoreMissingOrCorruptedManifest() throws IOException {
+    assertThat(FileManifest.load(new File(folder.getRoot(), "missing"))).isNull();
+    assertThat(FileManifest.load(write(folder.newFile(), "@settings=foo\n/src/Foo.java=bar"))).isNull();
+  }
+
+  @Test
+  public void hashLargeFilesWithMemoryMapping() throws IOException {
+    byte[] content = new byte[200_000];
+    Arrays.fill(content, (byte) 'a');
+    File small = write(folder.newFile(), "a");
+    File large = folder.newFile();
+    Files.write(large.toPath(), content);
+
+    assertThat(FileManifest.hash(large.toPath(), content.length))
+      .hasSize(64)
+      .isNotEqualTo(FileManifest.hash(small.toPath(), 1));
+  }
+
+  @Test
+  public void hashPropertiesIndependentlyOfOrder() {
+    Map<String, String> props = new HashMap<>();
+    props.put("sonar.a", "1");
+    props.put("sonar.b", "2");
+    Map<String, String> other = new HashMap<>();
+    other.put("sonar.b", "2");
+    other.put("sonar.a", "1");
+
+    assertThat(FileManifest.hash(props)).isEqualTo(FileManifest.hash(other));
+    other.put("sonar.a", "12");
+    assertThat(FileManifest.hash(props)).isNotEqualTo(FileManifest.hash(other));
+  }
+
+  private static File write(File file, String content) throws IOException {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    return file;
+  }
+
+}
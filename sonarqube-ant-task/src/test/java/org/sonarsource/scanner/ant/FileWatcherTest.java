@@ -0,0 +1,80 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileWatcherTest {
+
+  private static final long QUIET_PERIOD = 200;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void watchRootCreatedAgain() throws Exception {
+    File classes = folder.newFolder("build", "classes");
+    Path foo = classes.toPath().resolve("Foo.class");
+    try (FileWatcher watcher = new FileWatcher(Collections.singletonList(classes), Collections.emptyList())) {
+      Files.delete(classes.toPath());
+      assertThat(watcher.awaitChanges(QUIET_PERIOD)).contains(classes.toPath());
+
+      Files.createDirectory(classes.toPath());
+      assertThat(watcher.awaitChanges(QUIET_PERIOD)).contains(classes.toPath());
+
+      Files.createFile(foo);
+      assertThat(watcher.awaitChanges(QUIET_PERIOD)).containsExactly(foo);
+    }
+  }
+
+  @Test
+  public void ignoreSiblingsOfRoots() throws Exception {
+    File src = folder.newFolder("src");
+    Path foo = src.toPath().resolve("Foo.java");
+    try (FileWatcher watcher = new FileWatcher(Collections.singletonList(src), Collections.emptyList())) {
+      Files.createFile(folder.getRoot().toPath().resolve("build.log"));
+      Files.createFile(foo);
+
+      assertThat(watcher.awaitChanges(QUIET_PERIOD)).containsExactly(foo);
+    }
+  }
+
+  @Test
+  public void skipMissingRoots() throws Exception {
+    File src = new File(folder.getRoot(), "src");
+    try (FileWatcher watcher = new FileWatcher(Collections.singletonList(src), Collections.emptyList())) {
+      assertThat(watcher.size()).isEqualTo(1);
+
+      Files.createDirectory(src.toPath());
+      assertThat(watcher.awaitChanges(QUIET_PERIOD)).containsExactly(src.toPath());
+      assertThat(watcher.size()).isEqualTo(2);
+    }
+  }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.Task;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ForkedAnalysisTest {
+
+  @Test
+  public void encodeAndDecodeMultiLineMessages() {
+    String message = "Failure:\n\tat C:\\path\\File.java\r\n";
+    String encoded = ForkedAnalysis.encode("ERROR", message);
+
+    assertThat(encoded).doesNotContain("\n", "\r").startsWith("[sonar:ERROR] ");
+    assertThat(ForkedAnalysis.decode(encoded)).containsExactly("ERROR", message);
+    assertThat(ForkedAnalysis.decode("Printed by a plugin")).isNull();
+  }
+
+  @Test
+  public void decodeOutputOfForkedJvm() throws IOException {
+    List<String> logs = new ArrayList<>();
+    Task task = new Task() {
+    };
+    task.setProject(new Project());
+    AnalysisTimings timings = new AnalysisTimings();
+    ForkedAnalysis.ForkedLogOutputStream out = new ForkedAnalysis.ForkedLogOutputStream(task, (message, level) -> logs.add(level + " " + message),
+      timings);
+
+    String output = ForkedAnalysis.encode("DEBUG", "line1\nline2") + "\n"
+      + "Printed by a plugin\n"
+      + ForkedAnalysis.encode("WARN", "warning") + "\r\n"
+      + ForkedAnalysis.encode("TIMING", "bootstrap=1234") + "\n"
+      + ForkedAnalysis.encode("TIMING", "unknown=1") + "\n"
+      + ForkedAnalysis.encode("FAILURE", "Boom") + "\n";
+    out.write(output.getBytes(StandardCharsets.UTF_8));
+    out.close();
+
+    assertThat(logs).containsExactly("DEBUG line1\nline2", "INFO Printed by a plugin", "WARN warning");
+    assertThat(out.failure()).isEqualTo("Boom");
+    assertThat(timings.get(AnalysisTimings.Phase.BOOTSTRAP)).isEqualTo(1234L);
+  }
+
+  @Test
+  public void failOnMissingPropertiesFile() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+
+    assertThat(ForkedAnalysis.run(new String[0], out)).isEqualTo(2);
+    assertThat(ForkedAnalysis.run(new String[] {"missing.properties"}, out)).isEqualTo(1);
+    assertThat(bytes.toString()).contains("[sonar:ERROR] Usage: ", "[sonar:FAILURE] missing.properties");
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResourceSamplerTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<String> logs = new ArrayList<>();
+
+  @Test
+  public void writeSamplesAsCsv() throws IOException {
+    File csv = new File(folder.getRoot(), "build/samples.csv");
+    ResourceSampler sampler = new ResourceSampler(csv, 10, 0, 0, false, this::log).start();
+    sampler.sample();
+    sampler.close();
+
+    List<String> lines = Files.readAllLines(csv.toPath(), StandardCharsets.UTF_8);
+    assertThat(lines).hasSizeGreaterThanOrEqualTo(3);
+    assertThat(lines.get(0)).isEqualTo(ResourceSampler.CSV_HEADER);
+    assertThat(lines.subList(1, lines.size())).allMatch(line -> line.matches("\\d+,\\d+,\\d+,-?\\d+,\\d+,\\d+,-?\\d+,\\d+"));
+    assertThat(sampler.breach()).isNull();
+    assertThat(logs).isEmpty();
+  }
+
+  @Test
+  public void warnOnceWhenThresholdsAreCrossed() throws IOException {
+    ResourceSampler sampler = new ResourceSampler(null, 1000, 80, 30, false, this::log);
+
+    sampler.checkHeap(70, 100);
+    sampler.checkGcTime(29);
+    assertThat(logs).isEmpty();
+
+    sampler.checkHeap(85, 100);
+    sampler.checkHeap(95, 100);
+    sampler.checkGcTime(40);
+
+    assertThat(logs).hasSize(2);
+    assertThat(logs.get(0)).startsWith(Project.MSG_WARN + " Heap usage after garbage collection reached 85% ");
+    assertThat(logs.get(1)).startsWith(Project.MSG_WARN + " Garbage collections took 40% of the time");
+    assertThat(sampler.breach()).isNull();
+  }
+
+  @Test
+  public void reportFirstCrossedThresholdAsBreachWhenFailing() throws IOException {
+    ResourceSampler sampler = new ResourceSampler(null, 1000, 80, 30, true, this::log);
+
+    sampler.checkGcTime(50);
+    sampler.checkHeap(90, 100);
+
+    assertThat(sampler.breach()).startsWith("Garbage collections took 50% of the time");
+    assertThat(logs).allMatch(log -> log.startsWith(Project.MSG_ERR + " "));
+  }
+
+  private void log(String message, int level) {
+    logs.add(level + " " + message);
+  }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class RotatingLogFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void writeAllLevelsCompressed() throws IOException {
+    File file = new File(folder.getRoot(), "logs/sonar.log.gz");
+    try (RotatingLogFile logFile = new RotatingLogFile(file, 1024 * 1024, 2)) {
+      logFile.log("trace", Level.TRACE);
+      logFile.log("multi\nline", Level.ERROR);
+    }
+
+    List<String> lines = read(file);
+    assertThat(lines).hasSize(3);
+    assertThat(lines.get(0)).matches("\\d{4}-.*Z TRACE trace");
+    assertThat(lines.get(1)).endsWith(" ERROR multi");
+    assertThat(lines.get(2)).isEqualTo("line");
+  }
+
+  @Test
+  public void rotateWhenFull() throws IOException {
+    File file = new File(folder.getRoot(), "sonar.log.gz");
+    try (RotatingLogFile logFile = new RotatingLogFile(file, 100, 2)) {
+      for (int i = 0; i < 10; i++) {
+        logFile.log("message " + i + " padded to fill the file quickly", Level.DEBUG);
+      }
+      assertThat(logFile.failure()).isNull();
+      assertThat(logFile.rotated(1).getName()).isEqualTo("sonar.log.1.gz");
+    }
+
+    // the last file is full, the next one is created by the next message
+    assertThat(folder.getRoot().list()).containsExactlyInAnyOrder("sonar.log.1.gz", "sonar.log.2.gz");
+    assertThat(read(new File(folder.getRoot(), "sonar.log.2.gz")).get(0)).endsWith("message 6 padded to fill the file quickly");
+    assertThat(read(new File(folder.getRoot(), "sonar.log.1.gz")).get(1)).endsWith("message 9 padded to fill the file quickly");
+  }
+
+  @Test
+  public void keepLogOfPreviousAnalysis() throws IOException {
+    File file = new File(folder.getRoot(), "sonar.log");
+    try (RotatingLogFile logFile = new RotatingLogFile(file, 1024, 1)) {
+      logFile.log("first", Level.INFO);
+    }
+    try (RotatingLogFile logFile = new RotatingLogFile(file, 1024, 1)) {
+      logFile.log("second", Level.INFO);
+    }
+
+    assertThat(read(new File(folder.getRoot(), "sonar.log.1")).get(0)).endsWith("first");
+    assertThat(read(file).get(0)).endsWith("second");
+  }
+
+  private static List<String> read(File file) throws IOException {
+    try (Reader reader = new InputStreamReader(new GZIPInputStream(Files.newInputStream(file.toPath())), StandardCharsets.UTF_8)) {
+      return new BufferedReader(reader).lines().collect(Collectors.toList());
+    }
+  }
+
+}
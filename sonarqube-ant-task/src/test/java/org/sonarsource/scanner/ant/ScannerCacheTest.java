@@ -0,0 +1,208 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.junit.Assume.assumeTrue;
+
+public class ScannerCacheTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void evictLeastRecentlyUsedEntries() throws IOException {
+    File cache = folder.newFolder("cache");
+    long now = System.currentTimeMillis();
+    addEntry(cache, "old", 100, now - TimeUnit.DAYS.toMillis(3));
+    addEntry(cache, "recent", 100, now - TimeUnit.DAYS.toMillis(2));
+    addEntry(cache, "current", 100, now);
+    Files.createDirectories(new File(cache, "_tmp/download").toPath());
+
+    assertThat(ScannerCache.evict(cache, 300, now - 1000)).isZero();
+    assertThat(ScannerCache.evict(cache, 150, now - 1000)).isEqualTo(200L);
+
+    assertThat(cache.list()).containsOnly("current", "_tmp", ".sonar-ant.lock");
+    assertThat(new File(cache, "_tmp").list()).containsOnly("download");
+  }
+
+  @Test
+  public void keepEntriesUsedByTheAnalysis() throws IOException {
+    File cache = folder.newFolder("cache");
+    long now = System.currentTimeMillis();
+    addEntry(cache, "current", 100, now);
+
+    assertThat(ScannerCache.evict(cache, 0, now - 1000)).isZero();
+    assertThat(new File(cache, "current")).isDirectory();
+  }
+
+  @Test
+  public void keepEntriesRecentlyUsedByOtherBuilds() throws IOException {
+    File cache = folder.newFolder("cache");
+    long now = System.currentTimeMillis();
+    addEntry(cache, "old", 100, now - ScannerCache.RECENT_USE_MILLIS - 60_000);
+    addEntry(cache, "recent", 100, now - ScannerCache.RECENT_USE_MILLIS + 60_000);
+
+    assertThat(ScannerCache.evict(cache, 0, now)).isEqualTo(100L);
+    assertThat(cache.list()).contains("recent").doesNotContain("old");
+  }
+
+  @Test
+  public void recordUseOfOpenEntries() throws IOException {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File cache = folder.newFolder("cache");
+    long old = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(3);
+    addEntry(cache, "open", 100, old);
+    addEntry(cache, "closed", 100, old);
+    Set<Path> recorded = new HashSet<>();
+
+    try (InputStream in = new FileInputStream(new File(cache, "open/plugin.jar"))) {
+      ScannerCache.recordOpenEntries(cache, recorded);
+    }
+
+    assertThat(new File(cache, "open").lastModified()).isGreaterThan(old + 1000);
+    assertThat(new File(cache, "closed").lastModified()).isEqualTo(old);
+    assertThat(recorded).containsExactly(new File(cache, "open").toPath().toRealPath());
+  }
+
+  @Test
+  public void skipEvictionWhenLocked() throws Exception {
+    File cache = folder.newFolder("cache");
+    addEntry(cache, "old", 100, 0);
+    CountDownLatch locked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    Thread holder = new Thread(() -> {
+      try {
+        ScannerCache.locked(cache, () -> {
+          locked.countDown();
+          await(release);
+        });
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    holder.start();
+    await(locked);
+
+    Long freed = ScannerCache.evict(cache, 0, System.currentTimeMillis());
+    release.countDown();
+    holder.join();
+
+    assertThat(freed).isNull();
+    assertThat(ScannerCache.evict(cache, 0, System.currentTimeMillis())).isEqualTo(100L);
+  }
+
+  @Test
+  public void skipFilesRemovedDuringEviction() throws Exception {
+    File cache = folder.newFolder("cache");
+    addEntry(cache, "old", 100, 0);
+    Path busy = Files.createDirectories(new File(cache, "busy").toPath());
+    AtomicBoolean stop = new AtomicBoolean();
+    Thread churn = new Thread(() -> {
+      try {
+        // like the temporary files of an analysis sharing the cache
+        for (int i = 0; !stop.get(); i++) {
+          Path dir = Files.createDirectories(busy.resolve("dir" + (i % 50)));
+          for (int j = 0; j < 5; j++) {
+            Files.write(dir.resolve("file" + j), new byte[10]);
+          }
+          if (i >= 50) {
+            Path removed = busy.resolve("dir" + ((i + 25) % 50));
+            for (int j = 0; j < 5; j++) {
+              Files.deleteIfExists(removed.resolve("file" + j));
+            }
+            Files.deleteIfExists(removed);
+          }
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    churn.start();
+    try {
+      for (int i = 0; i < 500; i++) {
+        assertThat(ScannerCache.evict(cache, 1_000_000, 0)).isZero();
+      }
+    } finally {
+      stop.set(true);
+      churn.join();
+    }
+
+    assertThat(ScannerCache.evict(cache, 0, System.currentTimeMillis())).isEqualTo(100L);
+  }
+
+  @Test
+  public void resolveCacheDirectory() {
+    File userHome = new File(folder.getRoot(), "home");
+
+    assertThat(ScannerCache.cacheDir(Collections.singletonMap("sonar.userHome", userHome.getPath()), Collections.emptyMap()))
+      .isEqualTo(new File(userHome, "cache").getAbsoluteFile());
+    assertThat(ScannerCache.cacheDir(Collections.emptyMap(), Collections.singletonMap("SONAR_USER_HOME", userHome.getPath())))
+      .isEqualTo(new File(userHome, "cache").getAbsoluteFile());
+    assertThat(ScannerCache.cacheDir(Collections.emptyMap(), Collections.emptyMap()))
+      .isEqualTo(new File(System.getProperty("user.home"), ".sonar/cache").getAbsoluteFile());
+  }
+
+  @Test
+  public void parseSize() {
+    assertThat(ScannerCache.parseSize("100")).isEqualTo(100L);
+    assertThat(ScannerCache.parseSize("2k")).isEqualTo(2048L);
+    assertThat(ScannerCache.parseSize("3 M")).isEqualTo(3L * 1024 * 1024);
+    assertThat(ScannerCache.parseSize("1g")).isEqualTo(1024L * 1024 * 1024);
+    assertThatThrownBy(() -> ScannerCache.parseSize("1t")).isInstanceOf(IllegalArgumentException.class);
+    assertThatThrownBy(() -> ScannerCache.parseSize("-1")).isInstanceOf(IllegalArgumentException.class);
+  }
+
+  private static void addEntry(File cache, String name, int size, long lastUsed) throws IOException {
+    Path dir = Files.createDirectories(new File(cache, name).toPath());
+    Path file = Files.write(dir.resolve("plugin.jar"), new byte[size]);
+    for (Path path : new Path[] {file, dir}) {
+      Files.setAttribute(path, "lastAccessTime", FileTime.fromMillis(lastUsed));
+      Files.setLastModifiedTime(path, FileTime.fromMillis(lastUsed));
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    } catch (InterruptedException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
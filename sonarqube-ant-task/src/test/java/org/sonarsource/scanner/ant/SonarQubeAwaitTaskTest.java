@@ -0,0 +1,208 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SonarQubeAwaitTaskTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final CountDownLatch release = new CountDownLatch(1);
+  private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+  private Project project;
+  private SonarQubeAwaitTask await;
+  private RuntimeException failure;
+
+  @Before
+  public void setUp() throws IOException {
+    project = new Project();
+    project.setBaseDir(folder.newFolder());
+    DefaultLogger logger = new DefaultLogger();
+    logger.setOutputPrintStream(new PrintStream(output, true));
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    project.addBuildListener(logger);
+    await = new SonarQubeAwaitTask();
+    await.setProject(project);
+  }
+
+  @Test
+  public void replayLogsOfBackgroundAnalysisWhenJoined() {
+    startAnalysis("custom");
+    assertThat(output.toString()).contains("started in the background").doesNotContain("Analysing");
+
+    release.countDown();
+    await.setId("custom");
+    await.execute();
+
+    assertThat(output.toString()).contains("Analysing");
+    assertThat(output.toString().indexOf("Analysing")).isGreaterThan(output.toString().indexOf("started in the background"));
+    assertThat(project.getProperty("sonar.timing.total.ms")).isNotNull();
+  }
+
+  @Test
+  public void rethrowFailureOfBackgroundAnalysis() {
+    failure = new IllegalStateException("Boom");
+    startAnalysis(null);
+    release.countDown();
+
+    assertThatThrownBy(await::execute)
+      .isInstanceOf(BuildException.class)
+      .hasCause(failure);
+    assertThat(output.toString()).contains("Analysing");
+  }
+
+  @Test
+  public void discardDebugMessagesOfBackgroundAnalysisAtInfoLevel() {
+    List<String> forwarded = new ArrayList<>();
+    AtomicBoolean debugLoggable = new AtomicBoolean(true);
+    SonarQubeTask task = new SonarQubeTask() {
+      @Override
+      AnalysisPipeline newPipeline(String moduleName) {
+        SonarQubeTask owner = this;
+        return new AnalysisPipeline(this, moduleName) {
+          @Override
+          void launchAnalysis(Map<String, String> properties) {
+            SonarQubeTask.LogOutputImplementation logOutput = owner.new LogOutputImplementation("one") {
+              @Override
+              void logWithTaskLogger(String formattedMessage, int msgLevel) {
+                forwarded.add(formattedMessage);
+                super.logWithTaskLogger(formattedMessage, msgLevel);
+              }
+            };
+            debugLoggable.set(logOutput.isLoggable(Level.DEBUG));
+            logOutput.log("Debug message", Level.DEBUG);
+            logOutput.log("Info message", Level.INFO);
+          }
+        };
+      }
+    };
+    task.setProject(project);
+    task.setAsync(true);
+    task.execute();
+
+    await.execute();
+
+    assertThat(debugLoggable).isFalse();
+    assertThat(forwarded).containsExactly("[one] Info message");
+    assertThat(output.toString()).contains("Info message").doesNotContain("Debug message");
+  }
+
+  @Test
+  public void failWhenAnalysisTakesLongerThanTimeout() {
+    startAnalysis(null);
+    await.setTimeout(1);
+
+    assertThatThrownBy(await::execute)
+      .isInstanceOf(BuildException.class)
+      .hasMessage("The analysis is still running after 1s");
+
+    release.countDown();
+    await.setTimeout(0);
+    await.execute();
+    assertThat(output.toString()).contains("Analysing");
+  }
+
+  @Test
+  public void failWithoutBackgroundAnalysis() {
+    assertThatThrownBy(await::execute)
+      .isInstanceOf(BuildException.class)
+      .hasMessage("No SonarQube analysis started in the background with id 'sonar.analysis'");
+  }
+
+  @Test
+  public void joinAtBuildEndWhenNeverAwaited() {
+    failure = new IllegalStateException("Boom");
+    startAnalysis(null);
+    release.countDown();
+
+    assertThatThrownBy(() -> project.fireBuildFinished(null))
+      .isInstanceOf(BuildException.class)
+      .hasCause(failure);
+    assertThat(output.toString()).contains("was not joined with <sonar:await>").contains("Analysing");
+  }
+
+  @Test
+  public void keepBoundedNumberOfMessages() {
+    List<String> logs = new ArrayList<>();
+    BackgroundAnalysis analysis = new BackgroundAnalysis("bounded", () -> {
+    }, (message, level) -> logs.add(message), () -> {
+    });
+    analysis.setMaxKeptMessages(2);
+    analysis.start(project);
+    for (String message : new String[] {"first", "second", "third", "fourth"}) {
+      analysis.keep(message, Project.MSG_INFO);
+    }
+
+    analysis.join(0);
+    project.fireBuildFinished(null);
+
+    assertThat(logs).containsExactly("first", "second", "2 log message(s) of the analysis were not kept, set 'logFile' to keep them all");
+  }
+
+  private void startAnalysis(String id) {
+    SonarQubeTask task = new SonarQubeTask() {
+      @Override
+      AnalysisPipeline newPipeline(String moduleName) {
+        SonarQubeTask owner = this;
+        return new AnalysisPipeline(this, moduleName) {
+          @Override
+          void launchAnalysis(Map<String, String> properties) {
+            owner.log("Analysing");
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+              throw failure;
+            }
+          }
+        };
+      }
+    };
+    task.setProject(project);
+    task.setAsync(true);
+    if (id != null) {
+      task.setAsyncId(id);
+    }
+    task.execute();
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonarsource.scanner.api.LogOutput.Level;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SonarQubeBatchTaskTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final Map<String, Map<String, String>> analysedModules = new ConcurrentHashMap<>();
+  private final Map<String, String> logs = new ConcurrentHashMap<>();
+  private Project project;
+  private FakeBatchTask task;
+
+  @Before
+  public void setUp() throws IOException {
+    project = new Project();
+    project.setBaseDir(folder.getRoot());
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    logger.setOutputPrintStream(new PrintStream(new ByteArrayOutputStream()));
+    logger.setErrorPrintStream(new PrintStream(new ByteArrayOutputStream()));
+    project.addBuildListener(logger);
+    project.setProperty("sonar.projectVersion", "1.0");
+    task = new FakeBatchTask();
+    task.setProject(project);
+  }
+
+  @Test
+  public void analyseModulesWithMergedProperties() throws IOException {
+    File one = folder.newFolder("one");
+    addModule("one", one, "sonar.projectKey", "one");
+    addModule("two", folder.newFolder("two"), "sonar.projectKey", "two");
+    task.setThreads(2);
+
+    task.execute();
+
+    assertThat(analysedModules).containsOnlyKeys("one", "two");
+    assertThat(analysedModules.get("one"))
+      .containsEntry("sonar.projectKey", "one")
+      .containsEntry("sonar.projectVersion", "1.0")
+      .containsEntry("sonar.projectBaseDir", one.getAbsolutePath());
+    assertThat(logs).containsEntry("one", "[one] Analysing").containsEntry("two", "[two] Analysing");
+  }
+
+  @Test
+  public void skipModule() throws IOException {
+    addModule("one", folder.newFolder("one"), "sonar.scanner.skip", "true");
+    addModule("two", folder.newFolder("two"), "sonar.projectKey", "two");
+
+    task.execute();
+
+    assertThat(analysedModules).containsOnlyKeys("two");
+  }
+
+  @Test
+  public void failOnSharedWorkingDirectory() {
+    addModule("one", null, "sonar.projectKey", "one");
+    addModule("two", null, "sonar.projectKey", "two");
+
+    assertThatThrownBy(task::execute)
+      .isInstanceOf(BuildException.class)
+      .hasMessageContaining("Modules 'one' and 'two' use the same working directory");
+    assertThat(analysedModules).isEmpty();
+  }
+
+  @Test
+  public void collectAllFailures() throws IOException {
+    addModule("one", folder.newFolder("one"), "fail", "true");
+    addModule("two", folder.newFolder("two"), "sonar.projectKey", "two");
+    addModule("three", folder.newFolder("three"), "fail", "true");
+    task.setFailFast(false);
+
+    assertThatThrownBy(task::execute)
+      .isInstanceOf(BuildException.class)
+      .hasMessage("Analysis failed for 2 of 3 modules: one, three");
+    assertThat(analysedModules).containsOnlyKeys("one", "two", "three");
+  }
+
+  @Test
+  public void failFast() throws IOException {
+    addModule("one", folder.newFolder("one"), "fail", "true");
+    addModule("two", folder.newFolder("two"), "sonar.projectKey", "two");
+
+    assertThatThrownBy(task::execute)
+      .isInstanceOf(BuildException.class)
+      .hasMessage("Analysis of module 'one' failed: Boom");
+  }
+
+  @Test
+  public void publishTimingsOfEachModule() throws IOException {
+    addModule("one", folder.newFolder("one"), "sonar.projectKey", "one");
+    addModule("two", folder.newFolder("two"), "sonar.projectKey", "two");
+
+    task.execute();
+
+    assertThat(project.getProperty("sonar.timing.one.total.ms")).isNotNull();
+    assertThat(project.getProperty("sonar.timing.two.total.ms")).isNotNull();
+  }
+
+  @Test
+  public void rejectAttributesSharedByModules() {
+    assertThatThrownBy(() -> task.setLogFile(new File("sonar.log"))).isInstanceOf(BuildException.class).hasMessageContaining("logFile");
+    assertThatThrownBy(() -> task.setAsync(true)).isInstanceOf(BuildException.class).hasMessageContaining("async");
+    assertThatThrownBy(task::createSources).isInstanceOf(BuildException.class);
+  }
+
+  @Test
+  public void rejectInvalidThreadCount() {
+    assertThatThrownBy(() -> task.setThreads(0)).isInstanceOf(BuildException.class);
+  }
+
+  private void addModule(String name, File baseDir, String key, String value) {
+    SonarQubeBatchTask.Module module = task.createModule();
+    module.setName(name);
+    if (baseDir != null) {
+      module.setBasedir(baseDir);
+    }
+    SonarQubeBatchTask.Property property = new SonarQubeBatchTask.Property();
+    property.setName(key);
+    property.setValue(value);
+    module.addConfiguredProperty(property);
+  }
+
+  private class FakeBatchTask extends SonarQubeBatchTask {
+    @Override
+    Map<String, String> getEnv() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    AnalysisPipeline newPipeline(String moduleName) {
+      return new AnalysisPipeline(this, moduleName) {
+        @Override
+        void launchAnalysis(Map<String, String> properties) {
+          analysedModules.put(moduleName, properties);
+          new LogOutputImplementation(moduleName) {
+            @Override
+            void logWithTaskLogger(String formattedMessage, int msgLevel) {
+              logs.put(moduleName, formattedMessage);
+            }
+          }.log("Analysing", Level.INFO);
+          if (properties.containsKey("fail")) {
+            throw new IllegalStateException("Boom");
+          }
+        }
+      };
+    }
+  }
+
+}
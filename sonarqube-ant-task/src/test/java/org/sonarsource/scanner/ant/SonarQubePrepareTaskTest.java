@@ -0,0 +1,111 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SonarQubePrepareTaskTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Project project;
+
+  @Before
+  public void setUp() throws IOException {
+    project = new Project();
+    project.setBaseDir(folder.newFolder());
+    project.setProperty("sonar.userHome", folder.newFolder().getAbsolutePath());
+    project.setProperty("sonar.projectKey", "standin");
+  }
+
+  @Test
+  public void analyseWithPreparedEngine() throws IOException {
+    try (StandInServer server = new StandInServer(0, 0, 1024)) {
+      project.setProperty("sonar.host.url", server.url());
+      prepare();
+      analyse();
+
+      assertThat(server.requests()).extracting(Object::toString).containsExactly(
+        "GET /batch/index",
+        "GET /batch/file?name=" + StandInServer.ENGINE_FILE,
+        "GET /api/settings/values.protobuf",
+        "GET /api/plugins/installed",
+        "GET /api/plugins/download?plugin=java",
+        "GET /api/plugins/download?plugin=xml",
+        "POST /api/ce/submit?projectKey=standin");
+      assertThat(project.getProperty("sonar.timing.bootstrap.ms")).isNotNull();
+
+      analyse();
+
+      assertThat(server.requests()).extracting(Object::toString).filteredOn("GET /batch/index"::equals).hasSize(2);
+    }
+  }
+
+  @Test
+  public void startOwnEngineWhenConnectionChanged() throws IOException {
+    try (StandInServer server = new StandInServer(0, 0, 1024)) {
+      project.setProperty("sonar.host.url", server.url());
+      prepare();
+      project.setUserProperty("sonar.token", "changed");
+      analyse();
+
+      assertThat(server.requests()).extracting(Object::toString).filteredOn("GET /batch/index"::equals).hasSize(2);
+      assertThat(server.requests()).extracting(Object::toString).last().isEqualTo("POST /api/ce/submit?projectKey=standin");
+    }
+  }
+
+  @Test
+  public void skip() {
+    project.setProperty("sonar.scanner.skip", "true");
+
+    prepare();
+
+    assertThat((Object) project.getReference(PreparedEngine.DEFAULT_ID)).isNull();
+  }
+
+  private void prepare() {
+    SonarQubePrepareTask task = new SonarQubePrepareTask();
+    task.setProject(project);
+    task.execute();
+  }
+
+  private void analyse() {
+    SonarQubeTask task = new SonarQubeTask() {
+      @Override
+      Map<String, String> getEnv() {
+        return Collections.emptyMap();
+      }
+    };
+    task.setProject(project);
+    task.execute();
+  }
+
+}
@@ -22,26 +22,34 @@ package org.sonarsource.scanner.ant;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
+import javax.annotation.Nullable;
 import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
-import org.mockito.ArgumentCaptor;
+import org.sonarsource.scanner.api.EmbeddedScanner;
 import org.sonarsource.scanner.api.LogOutput.Level;
+import org.sonarsource.scanner.api.Utils;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.groups.Tuple.tuple;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -54,9 +62,28 @@ public class SonarQubeTaskTest {
   @Rule
   public TemporaryFolder folder = new TemporaryFolder();
 
+  private final List<Map<String, String>> analysed = new ArrayList<>();
   private SonarQubeTask task;
   private Project project;
 
+  /**
+   * Records the properties of the analyses of the spied task instead of running them.
+   */
+  private void recordAnalyses() {
+    SonarQubeTask spied = task;
+    doAnswer(invocation -> new AnalysisPipeline(spied, invocation.getArgument(0)) {
+      @Override
+      void launchAnalysis(Map<String, String> properties) {
+        analysed.add(properties);
+      }
+    }).when(task).newPipeline(any());
+  }
+
+  private Map<String, String> lastAnalysis() {
+    assertThat(analysed).isNotEmpty();
+    return analysed.get(analysed.size() - 1);
+  }
+
   @Test
   public void testAntProjectPropertiesPassedToSonarRunner() throws IOException {
     project = mock(Project.class);
@@ -67,9 +94,64 @@ public class SonarQubeTaskTest {
 
     execute();
 
-    ArgumentCaptor<Map<String, String>> argument = ArgumentCaptor.forClass(Map.class);
-    verify(task).launchAnalysis(argument.capture());
-    assertThat(argument.getValue().get("sonar.foo")).isEqualTo("bar");
+    assertThat(lastAnalysis().get("sonar.foo")).isEqualTo("bar");
+  }
+
+  @Test
+  public void onlySonarAndWhitelistedAntPropertiesArePassedToSonarRunner() throws IOException {
+    project = mock(Project.class);
+
+    Hashtable<String, Object> props = new Hashtable<>();
+    props.put("sonar.foo", "bar");
+    props.put("one.sonar.projectName", "Module One");
+    props.put("javac.classpath", "lib/a.jar:lib/b.jar");
+    props.put("custom.key", "value");
+    props.put("other.key", "value");
+    when(project.getProperties()).thenReturn(props);
+
+    execute(Collections.emptyMap(), "custom., unknown.");
+
+    assertThat(lastAnalysis())
+      .containsEntry("sonar.foo", "bar")
+      .containsEntry("one.sonar.projectName", "Module One")
+      .containsEntry("custom.key", "value")
+      .doesNotContainKeys("javac.classpath", "other.key");
+
+    execute(Collections.emptyMap(), "*");
+
+    assertThat(lastAnalysis()).containsKeys("javac.classpath", "other.key");
+  }
+
+  @Test
+  public void nestedPathsOverrideProperties() throws IOException {
+    Project realProject = new Project();
+    File baseDir = folder.newFolder();
+    realProject.setBaseDir(baseDir);
+    realProject.setProperty("sonar.sources", "src");
+    File src = new File(baseDir, "src");
+    File lib1 = new File(baseDir, "lib1/a.jar");
+    File lib2 = new File(baseDir, "lib2/a.jar");
+    for (File jar : Arrays.asList(lib1, lib2)) {
+      Files.createDirectories(jar.getParentFile().toPath());
+      Files.write(jar.toPath(), "jar".getBytes(StandardCharsets.UTF_8));
+    }
+
+    task = new SonarQubeTask();
+    task.setProject(realProject);
+    task.createSources().setLocation(src);
+    task.createSources().setPath("src2");
+    task.createLibraries().setLocation(lib1);
+    task.createLibraries().setLocation(lib2);
+    task = spy(task);
+    when(task.getEnv()).thenReturn(Collections.emptyMap());
+    recordAnalyses();
+
+    task.execute();
+
+    assertThat(lastAnalysis())
+      .containsEntry("sonar.sources", src.getCanonicalPath() + "," + new File(baseDir, "src2").getCanonicalPath())
+      .containsEntry("sonar.java.libraries", lib1.getCanonicalPath())
+      .doesNotContainKey("sonar.java.binaries");
   }
 
   @Test
@@ -82,7 +164,7 @@ public class SonarQubeTaskTest {
 
     execute();
 
-    verify(task, never()).launchAnalysis(any());
+    assertThat(analysed).isEmpty();
   }
 
   private void execute() throws IOException {
@@ -90,13 +172,20 @@ public class SonarQubeTaskTest {
   }
 
   private void execute(Map<String, String> env) throws IOException {
+    execute(env, null);
+  }
+
+  private void execute(Map<String, String> env, @Nullable String propertyPrefixes) throws IOException {
     task = new SonarQubeTask();
+    if (propertyPrefixes != null) {
+      task.setPropertyPrefixes(propertyPrefixes);
+    }
 
     when(project.getBaseDir()).thenReturn(folder.newFolder());
     task.setProject(project);
     task = spy(task);
     when(task.getEnv()).thenReturn(env);
-    doNothing().when(task).launchAnalysis(any(Map.class));
+    recordAnalyses();
 
     task.execute();
   }
@@ -126,6 +215,40 @@ public class SonarQubeTaskTest {
     verify(logOutput).logWithTaskLogger("Message", Project.MSG_ERR);
   }
 
+  @Test
+  public void discardMessagesNotOutputByAnyListener() {
+    Project realProject = new Project();
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    realProject.addBuildListener(logger);
+    task = new SonarQubeTask();
+    task.setProject(realProject);
+
+    SonarQubeTask.LogOutputImplementation logOutput = spy(task.new LogOutputImplementation());
+    doNothing().when(logOutput).logWithTaskLogger(any(), anyInt());
+    assertThat(logOutput.isLoggable(Level.DEBUG)).isFalse();
+    logOutput.log("Message", Level.TRACE);
+    logOutput.log("Message", Level.DEBUG);
+    verify(logOutput, never()).logWithTaskLogger(any(), anyInt());
+    logOutput.log("Message", Level.INFO);
+    verify(logOutput).logWithTaskLogger("Message", Project.MSG_INFO);
+  }
+
+  @Test
+  public void discardMessagesBelowConsoleLevel() {
+    task = new SonarQubeTask();
+    SonarQubeTask.LogLevel consoleLevel = new SonarQubeTask.LogLevel();
+    consoleLevel.setValue("warn");
+    task.setConsoleLevel(consoleLevel);
+
+    SonarQubeTask.LogOutputImplementation logOutput = spy(task.new LogOutputImplementation());
+    doNothing().when(logOutput).logWithTaskLogger(any(), anyInt());
+    logOutput.log("Message", Level.INFO);
+    verify(logOutput, never()).logWithTaskLogger(any(), anyInt());
+    logOutput.log("Message", Level.WARN);
+    verify(logOutput).logWithTaskLogger("Message", Project.MSG_WARN);
+  }
+
   @Test
   public void readPropsFromEnvVariable() throws IOException {
     project = mock(Project.class);
@@ -136,9 +259,44 @@ public class SonarQubeTaskTest {
 
     execute(env);
 
-    ArgumentCaptor<Map<String, String>> argument = ArgumentCaptor.forClass(Map.class);
-    verify(task).launchAnalysis(argument.capture());
-    assertThat(argument.getValue().get("sonar.foo")).isEqualTo("bar");
+    assertThat(lastAnalysis().get("sonar.foo")).isEqualTo("bar");
+  }
+
+  @Test
+  public void skipWithoutLoadingScannerApi() throws Exception {
+    List<URL> classpath = new ArrayList<>();
+    for (Class<?> clazz : Arrays.asList(SonarQubeTask.class, Project.class, EmbeddedScanner.class)) {
+      // directories need a trailing slash
+      classpath.add(new File(SonarQubeTaskUtils.getJarPath(clazz).toURI()).toURI().toURL());
+    }
+    try (RecordingClassLoader loader = new RecordingClassLoader(classpath.toArray(new URL[0]))) {
+      Class<?> projectClass = loader.loadClass(Project.class.getName());
+      Object isolatedProject = projectClass.getConstructor().newInstance();
+      projectClass.getMethod("setBaseDir", File.class).invoke(isolatedProject, folder.newFolder());
+      projectClass.getMethod("setProperty", String.class, String.class).invoke(isolatedProject, "sonar.scanner.skip", "true");
+      Class<?> taskClass = loader.loadClass(SonarQubeTask.class.getName());
+      Object isolatedTask = taskClass.getConstructor().newInstance();
+      taskClass.getMethod("setProject", projectClass).invoke(isolatedTask, isolatedProject);
+
+      taskClass.getMethod("execute").invoke(isolatedTask);
+
+      assertThat(loader.isLoaded(SonarQubeTask.class.getName())).isTrue();
+      assertThat(loader.isLoaded(EmbeddedScanner.class.getName())).isFalse();
+      assertThat(loader.isLoaded(Utils.class.getName())).isFalse();
+    }
+  }
+
+  /**
+   * Loads the task, Ant and the scanner API in isolation, to tell which classes a build loads.
+   */
+  private static class RecordingClassLoader extends URLClassLoader {
+    RecordingClassLoader(URL[] urls) {
+      super(urls, ClassLoader.getSystemClassLoader().getParent());
+    }
+
+    boolean isLoaded(String name) {
+      return findLoadedClass(name) != null;
+    }
   }
 
   @Test
@@ -168,6 +326,107 @@ public class SonarQubeTaskTest {
         tuple("sonar.scanner.app", "Ant"));
   }
 
+  @Test
+  public void forkedSimulationMode() throws IOException {
+    Project realProject = new Project();
+    File baseDir = folder.newFolder();
+    realProject.setBaseDir(baseDir);
+    File out = folder.newFile();
+    realProject.setProperty("sonar.scanner.dumpToFile", out.getAbsolutePath());
+    realProject.setProperty("sonar.password", "secret");
+
+    task = new SonarQubeTask();
+    task.setProject(realProject);
+    task.setFork(true);
+    task.setMaxmemory("128m");
+    task.createJvmarg().setValue("-XX:+UseSerialGC");
+    File timingReport = new File(folder.getRoot(), "timings/report.json");
+    task.setTimingReport(timingReport);
+    task = spy(task);
+    when(task.getEnv()).thenReturn(Collections.emptyMap());
+
+    task.execute();
+
+    Properties outProps = new Properties();
+    try (BufferedReader reader = Files.newBufferedReader(out.toPath(), StandardCharsets.UTF_8)) {
+      outProps.load(reader);
+    }
+    assertThat(outProps)
+      .containsEntry("sonar.projectBaseDir", baseDir.getAbsolutePath())
+      .containsEntry("sonar.password", "secret")
+      .containsEntry("sonar.scanner.app", "Ant");
+    assertThat(realProject.getProperty("sonar.timing.bootstrap.ms")).isNotNull();
+    assertThat(realProject.getProperty("sonar.timing.total.ms")).isNotNull();
+    assertThat(new String(Files.readAllBytes(timingReport.toPath()), StandardCharsets.UTF_8)).contains("\"analysis\": ");
+  }
+
+  @Test
+  public void incrementalAnalysisSkippedWhenNothingChanged() throws IOException {
+    project = mock(Project.class);
+    File baseDir = folder.newFolder();
+    File source = new File(baseDir, "src/Foo.java");
+    Files.createDirectories(source.getParentFile().toPath());
+    Files.write(source.toPath(), "class Foo {}".getBytes(StandardCharsets.UTF_8));
+    Hashtable<String, Object> props = new Hashtable<>();
+    props.put("sonar.sources", "src");
+    when(project.getProperties()).thenReturn(props);
+
+    assertThat(executeIncremental(baseDir)).isTrue();
+    assertThat(new File(baseDir, ".sonar-ant/manifest.properties")).isFile();
+    assertThat(executeIncremental(baseDir)).isFalse();
+
+    Files.write(source.toPath(), "class Foo { }".getBytes(StandardCharsets.UTF_8));
+    assertThat(executeIncremental(baseDir)).isTrue();
+
+    props.put("sonar.exclusions", "**/Bar.java");
+    assertThat(executeIncremental(baseDir)).isTrue();
+    assertThat(executeIncremental(baseDir)).isFalse();
+
+    props.put("sonar.token", "rotated");
+    assertThat(executeIncremental(baseDir)).isFalse();
+  }
+
+  @Test
+  public void incrementalAnalysisFingerprintsLibrariesAndReports() throws IOException {
+    project = mock(Project.class);
+    File baseDir = folder.newFolder();
+    File library = new File(baseDir, "lib/a,b.jar");
+    File report = new File(baseDir, "build/jacoco.xml");
+    Files.createDirectories(library.getParentFile().toPath());
+    Files.createDirectories(report.getParentFile().toPath());
+    Files.write(library.toPath(), new byte[] {1});
+    Files.write(report.toPath(), "<report/>".getBytes(StandardCharsets.UTF_8));
+    Hashtable<String, Object> props = new Hashtable<>();
+    props.put("sonar.java.libraries", "\"lib/a,b.jar\"");
+    props.put("sonar.coverage.jacoco.xmlReportPaths", "build/jacoco.xml");
+    when(project.getProperties()).thenReturn(props);
+
+    assertThat(executeIncremental(baseDir)).isTrue();
+    assertThat(executeIncremental(baseDir)).isFalse();
+
+    Files.write(library.toPath(), new byte[] {1, 2});
+    assertThat(executeIncremental(baseDir)).isTrue();
+    assertThat(executeIncremental(baseDir)).isFalse();
+
+    Files.write(report.toPath(), "<report></report>".getBytes(StandardCharsets.UTF_8));
+    assertThat(executeIncremental(baseDir)).isTrue();
+  }
+
+  private boolean executeIncremental(File baseDir) {
+    task = new SonarQubeTask();
+    when(project.getBaseDir()).thenReturn(baseDir);
+    task.setProject(project);
+    task.setIncremental(true);
+    task = spy(task);
+    when(task.getEnv()).thenReturn(Collections.emptyMap());
+    recordAnalyses();
+
+    analysed.clear();
+    task.execute();
+
+    return !analysed.isEmpty();
+  }
+
   private void testSonarVerboseForAntLevel(int antLevel, String sonarVerboseValue) throws IOException {
     project = mock(Project.class);
 
@@ -178,9 +437,7 @@ public class SonarQubeTaskTest {
 
     execute();
 
-    ArgumentCaptor<Map<String, String>> argument = ArgumentCaptor.forClass(Map.class);
-    verify(task).launchAnalysis(argument.capture());
-    assertThat(argument.getValue().get("sonar.verbose")).isEqualTo(sonarVerboseValue);
+    assertThat(lastAnalysis().get("sonar.verbose")).isEqualTo(sonarVerboseValue);
   }
 
   private static class MyCustomAntLogger extends DefaultLogger {
@@ -19,11 +19,17 @@
  */
 package org.sonarsource.scanner.ant;
 
+import java.io.PrintStream;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildListener;
+import org.apache.tools.ant.BuildLogger;
 import org.apache.tools.ant.DefaultLogger;
 import org.apache.tools.ant.Project;
+import org.apache.tools.ant.XmlLogger;
 import org.junit.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class SonarQubeTaskUtilsTest {
 
@@ -49,6 +55,59 @@ public class SonarQubeTaskUtilsTest {
     assertThat(SonarQubeTaskUtils.getAntLoggerLever(project)).isEqualTo(2);
   }
 
+  @Test
+  public void shouldGetEffectiveLogLevel() {
+    Project project = new Project();
+    assertThat(SonarQubeTaskUtils.getEffectiveLogLevel(project)).isEqualTo(Project.MSG_ERR);
+
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_WARN);
+    project.addBuildListener(logger);
+    assertThat(SonarQubeTaskUtils.getEffectiveLogLevel(project)).isEqualTo(Project.MSG_WARN);
+
+    XmlLogger xmlLogger = new XmlLogger();
+    xmlLogger.setMessageOutputLevel(Project.MSG_VERBOSE);
+    project.addBuildListener(xmlLogger);
+    assertThat(SonarQubeTaskUtils.getEffectiveLogLevel(project)).isEqualTo(Project.MSG_VERBOSE);
+
+    project.addBuildListener(mock(BuildListener.class));
+    assertThat(SonarQubeTaskUtils.getEffectiveLogLevel(project)).isEqualTo(Project.MSG_DEBUG);
+  }
+
+  @Test
+  public void shouldIgnoreBuildEndListeners() {
+    Project project = new Project();
+    DefaultLogger logger = new DefaultLogger();
+    logger.setMessageOutputLevel(Project.MSG_INFO);
+    project.addBuildListener(logger);
+    new BuildEndListener(project) {
+      @Override
+      void buildEnded() {
+      }
+    }.register();
+
+    assertThat(SonarQubeTaskUtils.getEffectiveLogLevel(project)).isEqualTo(Project.MSG_INFO);
+  }
+
+  @Test
+  public void shouldLogEverythingForLoggersOfUnknownLevel() {
+    Project project = new Project();
+    DefaultLogger defaultLogger = new DefaultLogger();
+    defaultLogger.setMessageOutputLevel(Project.MSG_WARN);
+    project.addBuildListener(defaultLogger);
+    BuildLogger logger = new LevelUnawareLogger();
+    logger.setMessageOutputLevel(Project.MSG_DEBUG);
+    project.addBuildListener(logger);
+
+    assertThat(SonarQubeTaskUtils.getEffectiveLogLevel(project)).isEqualTo(Project.MSG_DEBUG);
+  }
+
+  @Test
+  public void shouldHashShortly() {
+    assertThat(SonarQubeTaskUtils.shortHash("key")).matches("[0-9a-f]{16}").isEqualTo(SonarQubeTaskUtils.shortHash("key"));
+    assertThat(SonarQubeTaskUtils.shortHash("other key")).isNotEqualTo(SonarQubeTaskUtils.shortHash("key"));
+  }
+
   @Test
   public void shouldGetVersion() {
     String version = SonarQubeTaskUtils.getTaskVersion();
@@ -56,4 +115,55 @@ public class SonarQubeTaskUtilsTest {
     assertThat(version).doesNotContain("$");
   }
 
+  /**
+   * Logger that does not override {@link BuildLogger#getMessageOutputLevel()}, which then answers <code>MSG_INFO</code>.
+   */
+  private static class LevelUnawareLogger implements BuildLogger {
+    private int level = Project.MSG_INFO;
+
+    @Override
+    public void setMessageOutputLevel(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public void setOutputPrintStream(PrintStream output) {
+    }
+
+    @Override
+    public void setErrorPrintStream(PrintStream err) {
+    }
+
+    @Override
+    public void setEmacsMode(boolean emacsMode) {
+    }
+
+    @Override
+    public void buildStarted(BuildEvent event) {
+    }
+
+    @Override
+    public void buildFinished(BuildEvent event) {
+    }
+
+    @Override
+    public void targetStarted(BuildEvent event) {
+    }
+
+    @Override
+    public void targetFinished(BuildEvent event) {
+    }
+
+    @Override
+    public void taskStarted(BuildEvent event) {
+    }
+
+    @Override
+    public void taskFinished(BuildEvent event) {
+    }
+
+    @Override
+    public void messageLogged(BuildEvent event) {
+    }
+  }
 }
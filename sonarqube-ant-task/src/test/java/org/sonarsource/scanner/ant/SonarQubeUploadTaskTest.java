@@ -0,0 +1,194 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SonarQubeUploadTaskTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Project project;
+  private SonarQubeUploadTask task;
+
+  @Before
+  public void setUp() throws IOException {
+    project = new Project();
+    project.setBaseDir(folder.newFolder());
+    project.setProperty("sonar.projectKey", "org.example:project");
+    project.setProperty("sonar.token", "secret");
+    task = new SonarQubeUploadTask();
+    task.setProject(project);
+    task.setRetryDelayMillis(1);
+  }
+
+  @Test
+  public void submitReportOfWorkingDirectory() throws IOException {
+    File reportDir = new File(project.getBaseDir(), ".scannerwork/scanner-report");
+    write(new File(reportDir, "metadata.pb"), "metadata");
+    write(new File(reportDir, "sub/component-1.pb"), "component");
+    project.setProperty("sonar.branch.name", "feature/x");
+
+    try (StandInServer server = new StandInServer(0, 0, 0)) {
+      project.setProperty("sonar.host.url", server.url() + "/");
+      task.execute();
+
+      assertThat(server.requests()).extracting(Object::toString).containsExactly("POST /api/ce/submit");
+      StandInServer.RecordedRequest request = server.requests().get(0);
+      assertThat(request.authorization).isEqualTo("Basic c2VjcmV0Og==");
+      String body = new String(request.body, StandardCharsets.ISO_8859_1);
+      assertThat(body).contains(
+        "name=\"projectKey\"\r\n\r\norg.example:project\r\n",
+        "name=\"characteristic\"\r\n\r\nbranch=feature/x\r\n",
+        "name=\"report\"; filename=\"report.zip\"");
+      assertThat(zipEntries(request.body, body.indexOf("PK"))).containsExactly("metadata.pb", "sub/component-1.pb");
+    }
+  }
+
+  @Test
+  public void retrySubmission() throws IOException {
+    File reportDir = folder.newFolder("kept");
+    write(new File(reportDir, "metadata.pb"), "metadata");
+    SonarQubeUploadTask.Report report = task.createReport();
+    report.setDir(reportDir);
+    report.setProjectKey("other");
+
+    try (StandInServer server = new StandInServer(0, 0, 0)) {
+      project.setProperty("sonar.host.url", server.url());
+      server.failNext(2);
+      task.setRetries(2);
+      task.execute();
+
+      assertThat(server.requests()).hasSize(3);
+
+      server.failNext(3);
+      assertThatThrownBy(task::execute)
+        .isInstanceOf(BuildException.class)
+        .hasMessageContaining("Unable to submit the report of other: Server returned status 503");
+    }
+  }
+
+  @Test
+  public void doNotRetryRejectedSubmission() throws IOException {
+    write(new File(project.getBaseDir(), ".scannerwork/scanner-report/metadata.pb"), "metadata");
+
+    try (StandInServer server = new StandInServer(0, 0, 0)) {
+      project.setProperty("sonar.host.url", server.url());
+      server.failNext(1, 403);
+      task.setRetries(2);
+
+      assertThatThrownBy(task::execute)
+        .isInstanceOf(BuildException.class)
+        .hasMessageContaining("The report of org.example:project was rejected: Server returned status 403");
+      assertThat(server.requests()).hasSize(1);
+    }
+  }
+
+  @Test
+  public void submitThroughProxyToServerOfEnvironment() throws IOException {
+    write(new File(project.getBaseDir(), ".scannerwork/scanner-report/metadata.pb"), "metadata");
+    project.setProperty("sonar.organization", "example");
+
+    try (StandInServer server = new StandInServer(0, 0, 0)) {
+      URL proxy = new URL(server.url());
+      project.setProperty("sonar.scanner.proxyHost", proxy.getHost());
+      project.setProperty("sonar.scanner.proxyPort", String.valueOf(proxy.getPort()));
+      task = new SonarQubeUploadTask() {
+        @Override
+        Map<String, String> getEnv() {
+          return Collections.singletonMap("SONAR_HOST_URL", "http://sonar.invalid");
+        }
+      };
+      task.setProject(project);
+      task.execute();
+
+      assertThat(server.requests()).extracting(Object::toString).containsExactly("POST /api/ce/submit");
+      assertThat(new String(server.requests().get(0).body, StandardCharsets.ISO_8859_1))
+        .contains("name=\"organization\"\r\n\r\nexample\r\n");
+    }
+  }
+
+  @Test
+  public void skipReportSubmittedByTheAnalysis() throws IOException {
+    File reportFile = new File(project.getBaseDir(), ".scannerwork/scanner-report/metadata.pb");
+    write(reportFile, "metadata");
+    File reportTask = new File(project.getBaseDir(), ".scannerwork/report-task.txt");
+    write(reportTask, "ceTaskId=AXtask");
+    assertThat(reportFile.setLastModified(reportTask.lastModified() - 1000)).isTrue();
+
+    try (StandInServer server = new StandInServer(0, 0, 0)) {
+      project.setProperty("sonar.host.url", server.url());
+      task.execute();
+
+      assertThat(server.requests()).isEmpty();
+
+      // written again by an analysis which failed to submit it
+      assertThat(reportFile.setLastModified(reportTask.lastModified() + 1000)).isTrue();
+      task.execute();
+
+      assertThat(server.requests()).hasSize(1);
+    }
+  }
+
+  @Test
+  public void failWithoutKeptReport() {
+    assertThatThrownBy(task::execute)
+      .isInstanceOf(BuildException.class)
+      .hasMessageContaining("No analysis report in ");
+  }
+
+  private static void write(File file, String content) throws IOException {
+    Files.createDirectories(file.getParentFile().toPath());
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static List<String> zipEntries(byte[] body, int offset) throws IOException {
+    List<String> names = new ArrayList<>();
+    try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(body, offset, body.length - offset))) {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        names.add(entry.getName());
+      }
+    }
+    return names;
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SonarQubeWarmupTaskTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Map<String, String> startedWith;
+  private Project project;
+  private SonarQubeWarmupTask task;
+
+  @Before
+  public void setUp() throws IOException {
+    project = new Project();
+    project.setBaseDir(folder.newFolder());
+    project.setProperty("sonar.host.url", "http://localhost:9000");
+    task = new SonarQubeWarmupTask() {
+      @Override
+      String startEngine(SonarQubeTask task, Map<String, String> properties) {
+        startedWith = properties;
+        return "9.9";
+      }
+    };
+    task.setProject(project);
+  }
+
+  @Test
+  public void startEngineAndWriteMarker() throws IOException {
+    File marker = new File(folder.getRoot(), "build/marker.properties");
+    task.setMarker(marker);
+
+    task.execute();
+
+    assertThat(startedWith).containsEntry("sonar.host.url", "http://localhost:9000");
+    Properties props = new Properties();
+    try (Reader reader = Files.newBufferedReader(marker.toPath(), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    }
+    assertThat(props)
+      .containsEntry("serverVersion", "9.9")
+      .containsEntry("hostUrl", "http://localhost:9000")
+      .containsKeys("taskVersion", "date");
+    assertThat(marker.getParentFile().list()).containsExactly("marker.properties");
+  }
+
+  @Test
+  public void skip() {
+    project.setProperty("sonar.scanner.skip", "true");
+
+    task.execute();
+
+    assertThat(startedWith).isNull();
+  }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.tools.ant.BuildEvent;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DefaultLogger;
+import org.apache.tools.ant.Project;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SonarQubeWatchTaskTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final AtomicInteger analyses = new AtomicInteger();
+  private final Semaphore analysed = new Semaphore(0);
+  private final CountDownLatch skipped = new CountDownLatch(1);
+  private int failingAnalysis;
+  private Project project;
+  private File source;
+  private SonarQubeWatchTask task;
+
+  @Before
+  public void setUp() throws IOException {
+    File baseDir = folder.newFolder();
+    source = new File(baseDir, "src/Foo.java");
+    Files.createDirectories(source.getParentFile().toPath());
+    Files.write(source.toPath(), "class Foo {}".getBytes(StandardCharsets.UTF_8));
+    project = new Project();
+    project.setBaseDir(baseDir);
+    project.setProperty("sonar.sources", "src");
+    project.addBuildListener(new DefaultLogger() {
+      @Override
+      public void messageLogged(BuildEvent event) {
+        if (event.getMessage().startsWith("No change in the")) {
+          skipped.countDown();
+        }
+      }
+    });
+    task = new SonarQubeWatchTask() {
+      @Override
+      AnalysisPipeline newPipeline(String moduleName) {
+        return new AnalysisPipeline(this, moduleName) {
+          @Override
+          void launchAnalysis(Map<String, String> properties) {
+            int analysis = analyses.incrementAndGet();
+            analysed.release();
+            if (analysis == failingAnalysis) {
+              throw new IllegalStateException("Boom");
+            }
+          }
+        };
+      }
+    };
+    task.setProject(project);
+    task.setFork(true);
+    task.setQuietPeriod(100);
+  }
+
+  @Test
+  public void analyseAgainWhenContentChanges() throws Exception {
+    task.setMaxRounds(3);
+    Thread watch = new Thread(task::execute);
+    watch.start();
+
+    assertThat(analysed.tryAcquire(30, TimeUnit.SECONDS)).isTrue();
+    // same content
+    Files.write(source.toPath(), "class Foo {}".getBytes(StandardCharsets.UTF_8));
+    assertThat(skipped.await(30, TimeUnit.SECONDS)).isTrue();
+    Files.write(source.toPath(), "class Foo { }".getBytes(StandardCharsets.UTF_8));
+    watch.join(TimeUnit.SECONDS.toMillis(30));
+
+    assertThat(watch.isAlive()).isFalse();
+    assertThat(analyses.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void watchAgainAfterFailedAnalysis() throws Exception {
+    failingAnalysis = 1;
+    task.setMaxRounds(2);
+    Thread watch = new Thread(task::execute);
+    watch.start();
+
+    assertThat(analysed.tryAcquire(30, TimeUnit.SECONDS)).isTrue();
+    Files.write(source.toPath(), "class Foo { }".getBytes(StandardCharsets.UTF_8));
+    watch.join(TimeUnit.SECONDS.toMillis(30));
+
+    assertThat(watch.isAlive()).isFalse();
+    assertThat(analyses.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void rejectWildcardsAndBackground() {
+    project.setProperty("sonar.sources", "src/**");
+
+    assertThatThrownBy(task::execute).isInstanceOf(BuildException.class).hasMessageContaining("wildcards");
+    assertThatThrownBy(() -> task.setAsync(true)).isInstanceOf(BuildException.class);
+  }
+
+}
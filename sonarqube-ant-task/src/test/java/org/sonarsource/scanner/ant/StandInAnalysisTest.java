@@ -0,0 +1,209 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.tools.ant.Project;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Analyses run end to end against {@link StandInServer}.
+ */
+public class StandInAnalysisTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void bootstrapFromCacheOnSecondAnalysis() throws IOException {
+    File userHome = folder.newFolder();
+    try (StandInServer server = new StandInServer(0, 0, 1024)) {
+      Project project = analyse(server, userHome);
+
+      assertThat(server.requests()).extracting(Object::toString).containsExactly(
+        "GET /batch/index",
+        "GET /batch/file?name=" + StandInServer.ENGINE_FILE,
+        "GET /api/settings/values.protobuf",
+        "GET /api/plugins/installed",
+        "GET /api/plugins/download?plugin=java",
+        "GET /api/plugins/download?plugin=xml",
+        "POST /api/ce/submit?projectKey=standin");
+      assertThat(server.requests().get(6).bytesReceived).isGreaterThan(65536);
+      assertThat(project.getProperty("sonar.timing.log.info.count")).isNotEqualTo("0");
+
+      analyse(server, userHome);
+
+      assertThat(server.requests().subList(7, server.requests().size())).extracting(Object::toString).containsExactly(
+        "GET /batch/index",
+        "GET /api/settings/values.protobuf",
+        "GET /api/plugins/installed",
+        "GET /api/plugins/download?plugin=java",
+        "GET /api/plugins/download?plugin=xml",
+        "POST /api/ce/submit?projectKey=standin");
+    }
+  }
+
+  @Test
+  public void doNotRecordUseOfCacheEntriesWithoutCacheMaxSize() throws IOException {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File userHome = folder.newFolder();
+    try (StandInServer server = new StandInServer(0, 0, 1024)) {
+      analyse(server, userHome);
+      FileTime longAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30));
+      List<Path> entries = setLastModifiedTimes(new File(userHome, "cache"), longAgo);
+      assertThat(entries).isNotEmpty();
+
+      analyse(server, userHome);
+      for (Path entry : entries) {
+        assertThat(Files.getLastModifiedTime(entry)).isEqualTo(longAgo);
+      }
+    }
+  }
+
+  private static List<Path> setLastModifiedTimes(File dir, FileTime time) throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir.toPath())) {
+      for (Path entry : children) {
+        if (!entry.getFileName().toString().startsWith("_")) {
+          Files.setLastModifiedTime(entry, time);
+          entries.add(entry);
+        }
+      }
+    }
+    return entries;
+  }
+
+  @Test
+  public void measureNetworkCostOfEachPhase() throws IOException {
+    long latency = 100;
+    try (StandInServer server = new StandInServer(latency, 1024 * 1024, 256 * 1024)) {
+      Project project = analyse(server, folder.newFolder());
+
+      // index and engine
+      assertThat(Long.parseLong(project.getProperty("sonar.timing.bootstrap.ms"))).isGreaterThanOrEqualTo(2 * latency);
+      // settings, plugins index, 2 plugins of 256 KB at 1 MB/s, report of 64 KB at 1 MB/s
+      assertThat(Long.parseLong(project.getProperty("sonar.timing.analysis.ms"))).isGreaterThanOrEqualTo(5 * latency + 500 + 60);
+    }
+  }
+
+  @Test
+  public void releaseEngineAfterWarmup() throws IOException {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File userHome = folder.newFolder();
+    try (StandInServer server = new StandInServer(0, 0, 1024)) {
+      Project project = new Project();
+      project.setBaseDir(folder.newFolder());
+      project.setProperty("sonar.host.url", server.url());
+      project.setProperty("sonar.userHome", userHome.getAbsolutePath());
+      SonarQubeWarmupTask warmup = new SonarQubeWarmupTask();
+      warmup.setProject(project);
+
+      warmup.execute();
+
+      assertThat(server.requests()).extracting(Object::toString).contains("GET /batch/file?name=" + StandInServer.ENGINE_FILE);
+      assertThat(openFiles(userHome)).isEmpty();
+    }
+  }
+
+  @Test
+  public void releaseUntakenPreparedEngineAtBuildEnd() throws IOException, InterruptedException {
+    assumeTrue(new File("/proc/self/fd").isDirectory());
+    File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+    List<Path> openBefore = openFiles(tmpDir);
+    try (StandInServer server = new StandInServer(0, 0, 1024)) {
+      Project project = new Project();
+      project.setBaseDir(folder.newFolder());
+      project.setProperty("sonar.host.url", server.url());
+      project.setProperty("sonar.userHome", folder.newFolder().getAbsolutePath());
+      SonarQubePrepareTask prepare = new SonarQubePrepareTask();
+      prepare.setProject(project);
+      prepare.execute();
+      PreparedEngine engine = (PreparedEngine) project.getReference(PreparedEngine.DEFAULT_ID);
+      long deadline = System.currentTimeMillis() + 30_000;
+      while (!engine.isStarted() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(100);
+      }
+      // the scanner API extracts its launcher to the temporary directory, and keeps it open until released
+      List<Path> openByEngine = openFiles(tmpDir);
+      openByEngine.removeAll(openBefore);
+      assertThat(openByEngine).isNotEmpty();
+
+      project.fireBuildFinished(null);
+
+      assertThat(engine.isTaken()).isTrue();
+      assertThat(openFiles(tmpDir)).doesNotContainAnyElementsOf(openByEngine);
+    }
+  }
+
+  /**
+   * Files of the given directory open by this JVM, on Linux
+   */
+  private static List<Path> openFiles(File dir) throws IOException {
+    Path realDir = dir.toPath().toRealPath();
+    List<Path> open = new ArrayList<>();
+    try (DirectoryStream<Path> links = Files.newDirectoryStream(Paths.get("/proc/self/fd"))) {
+      for (Path link : links) {
+        try {
+          Path file = Files.readSymbolicLink(link);
+          if (file.startsWith(realDir)) {
+            open.add(file);
+          }
+        } catch (IOException e) {
+          // closed meanwhile
+        }
+      }
+    }
+    return open;
+  }
+
+  private Project analyse(StandInServer server, File userHome) throws IOException {
+    Project project = new Project();
+    project.setBaseDir(folder.newFolder());
+    project.setProperty("sonar.host.url", server.url());
+    project.setProperty("sonar.userHome", userHome.getAbsolutePath());
+    project.setProperty("sonar.projectKey", "standin");
+    SonarQubeTask task = new SonarQubeTask() {
+      @Override
+      Map<String, String> getEnv() {
+        return Collections.emptyMap();
+      }
+    };
+    task.setProject(project);
+    task.execute();
+    return project;
+  }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * SonarQube Scanner for Ant
+ * Copyright (C) 2011-2024 SonarSource SA
+ * mailto:info AT sonarsource DOT com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package org.sonarsource.scanner.ant;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+import javax.annotation.Nullable;
+import org.sonar.batch.bootstrapper.Batch;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Local HTTP server answering the requests of the scanner API and of the stand-in engine ({@link Batch}) with recorded
+ * fixtures, so that analyses can run end to end without SonarQube:
+ * <ul>
+ *   <li><code>GET /batch/index</code> and <code>GET /batch/file</code>: bootstrap of the engine</li>
+ *   <li><code>GET /api/settings/values.protobuf</code>, <code>GET /api/plugins/installed</code> and
+ *   <code>GET /api/plugins/download</code>: settings and plugins. The settings response is empty: the stand-in
+ *   serves no server-side settings, so the analyses only get the properties of the build.</li>
+ *   <li><code>POST /api/ce/submit</code>: submission of the report</li>
+ * </ul>
+ * Every response can be delayed, and the bodies sent and received can be throttled, to reproduce a slow network.
+ */
+class StandInServer implements AutoCloseable {
+
+  static final String ENGINE_FILE = "sonar-scanner-engine-shaded-standin.jar";
+  private static final String FIXTURES = "/org/sonarsource/scanner/ant/standin/";
+  private static final int CHUNK_SIZE = 8192;
+
+  private final long latencyMillis;
+  private final long bytesPerSecond;
+  private final int pluginSize;
+  private final byte[] engine;
+  private final List<RecordedRequest> requests = new CopyOnWriteArrayList<>();
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger failures = new AtomicInteger();
+  private volatile int failureStatus;
+
+  /**
+   * @param latencyMillis delay before each response
+   * @param bytesPerSecond maximum throughput of each request and response body, or 0 for no limit
+   * @param pluginSize size of each downloaded plugin
+   */
+  StandInServer(long latencyMillis, long bytesPerSecond, int pluginSize) throws IOException {
+    this.latencyMillis = latencyMillis;
+    this.bytesPerSecond = bytesPerSecond;
+    this.pluginSize = pluginSize;
+    this.engine = engineJar();
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  String url() {
+    return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+  }
+
+  List<RecordedRequest> requests() {
+    return new ArrayList<>(requests);
+  }
+
+  /**
+   * Answers the next requests with a <code>503 Service Unavailable</code>, like a server being restarted.
+   */
+  void failNext(int count) {
+    failNext(count, 503);
+  }
+
+  /**
+   * Answers the next requests with the given error status.
+   */
+  void failNext(int count, int status) {
+    failureStatus = status;
+    failures.set(count);
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+    String query = exchange.getRequestURI().getQuery();
+    ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+    long received = copy(exchange.getRequestBody(), requestBody);
+    boolean failed = failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0;
+    byte[] body = failed ? null : respond(method, path, query);
+    // recorded before responding, so that the client never sees its response before the request is recorded
+    requests.add(new RecordedRequest(method, query == null ? path : (path + "?" + query), received, body == null ? 0 : body.length,
+      exchange.getRequestHeaders().getFirst("Authorization"), requestBody.toByteArray()));
+    sleep(latencyMillis);
+    if (failed) {
+      exchange.sendResponseHeaders(failureStatus, -1);
+    } else if (body == null) {
+      exchange.sendResponseHeaders(404, -1);
+    } else {
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        write(body, out);
+      }
+    }
+    exchange.close();
+  }
+
+  private byte[] respond(String method, String path, String query) throws IOException {
+    String request = method + " " + path;
+    switch (request) {
+      case "GET /batch/index":
+        return (ENGINE_FILE + "|" + md5(engine) + "\n").getBytes(StandardCharsets.UTF_8);
+      case "GET /batch/file":
+        return ("name=" + ENGINE_FILE).equals(query) ? engine : null;
+      case "GET /api/settings/values.protobuf":
+        // an empty ValuesWsResponse: no server-side settings
+        return new byte[0];
+      case "GET /api/plugins/installed":
+        return fixture("plugins-installed.json");
+      case "GET /api/plugins/download":
+        return new byte[pluginSize];
+      case "POST /api/ce/submit":
+        return fixture("ce-submit.json");
+      default:
+        return null;
+    }
+  }
+
+  private long copy(InputStream in, OutputStream out) throws IOException {
+    long total = 0;
+    byte[] buffer = new byte[CHUNK_SIZE];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      out.write(buffer, 0, read);
+      total += read;
+      throttle(read);
+    }
+    return total;
+  }
+
+  private void write(byte[] body, OutputStream out) throws IOException {
+    for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+      int length = Math.min(CHUNK_SIZE, body.length - offset);
+      out.write(body, offset, length);
+      throttle(length);
+    }
+  }
+
+  private void throttle(int bytes) {
+    if (bytesPerSecond > 0) {
+      sleep(bytes * 1000L / bytesPerSecond);
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static byte[] fixture(String name) throws IOException {
+    try (InputStream in = StandInServer.class.getResourceAsStream(FIXTURES + name)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[CHUNK_SIZE];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Packages the compiled classes of the stand-in engine, plus the version of the server expected by the scanner API.
+   */
+  private static byte[] engineJar() throws IOException {
+    Path classes;
+    try {
+      classes = new File(Batch.class.getResource("Batch.class").toURI()).getParentFile().toPath();
+    } catch (URISyntaxException e) {
+      throw new IllegalStateException(e);
+    }
+    String packagePath = Batch.class.getPackage().getName().replace('.', '/') + "/";
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (JarOutputStream jar = new JarOutputStream(bytes); Stream<Path> files = Files.list(classes)) {
+      for (Path file : files.sorted().collect(toList())) {
+        jar.putNextEntry(new JarEntry(packagePath + file.getFileName()));
+        jar.write(Files.readAllBytes(file));
+      }
+      jar.putNextEntry(new JarEntry("sq-version.txt"));
+      jar.write(fixture("sq-version.txt"));
+    }
+    return bytes.toByteArray();
+  }
+
+  private static String md5(byte[] bytes) {
+    try {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("MD5").digest(bytes)) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static class RecordedRequest {
+    final String request;
+    final long bytesReceived;
+    final long bytesSent;
+    @Nullable
+    final String authorization;
+    final byte[] body;
+
+    RecordedRequest(String method, String pathAndQuery, long bytesReceived, long bytesSent, @Nullable String authorization,
+      byte[] body) {
+      this.request = method + " " + pathAndQuery;
+      this.bytesReceived = bytesReceived;
+      this.bytesSent = bytesSent;
+      this.authorization = authorization;
+      this.body = body;
+    }
+
+    @Override
+    public String toString() {
+      return request;
+    }
+  }
+
+}